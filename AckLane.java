@@ -0,0 +1,127 @@
+package wifi;
+import java.io.PrintWriter;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This thread transmits the control frames (ACKs and CTSs) the receiver owes
+ * other stations, exactly SIFS after the frame they answer arrived.  Keeping
+ * this off the receive loop means it never stops reading from the RF layer
+ * while we wait out SIFS or transmit.
+ * 
+ * @author Braude and Corpron
+ *
+ */
+public class AckLane implements Runnable {
+
+	//How close to the deadline we stop sleeping and start spinning, in ns
+	private static final long SPIN_NANOS = 1000000;
+	//Responses this late are useless: the sender has already given up on them
+	private static final long STALE_NANOS = (RFInterface.aSlotTime + Sender.ACKTIME) * 1000000L;
+	private static final int lane_size = 8;
+	
+	private RFInterface theRF;
+	private PrintWriter output;
+	private ArrayBlockingQueue<Response> pending = new ArrayBlockingQueue<>(lane_size);
+	//Responses queued or on their way out, so the sender can keep off the air until they're done
+	private AtomicInteger owed = new AtomicInteger();
+	
+	private long sent = 0;
+	private long late = 0;
+	private long dropped = 0;
+	
+	//A control frame and the System.nanoTime() at which it should go out
+	private static class Response {
+		Packet packet;
+		long due;
+		
+		Response(Packet packet, long due) {
+			this.packet = packet;
+			this.due = due;
+		}
+	}
+	
+	public AckLane(RFInterface theRF, PrintWriter output) {
+		this.theRF = theRF;
+		this.output = output;
+	}
+	
+	/**
+	 * Schedule a control frame to go out SIFS after the frame it answers
+	 * @param response the ACK or CTS to send
+	 * @param arrived System.nanoTime() when the frame being answered was received
+	 */
+	public void respond(Packet response, long arrived) {
+		owed.incrementAndGet();
+		if (!pending.offer(new Response(response, arrived + RFInterface.aSIFSTime * 1000000L))) {
+			owed.decrementAndGet();
+			synchronized (this) {
+				dropped++;
+			}
+			if (LinkLayer.debugLevel() == 2) output.println("AckLane: too many responses pending, dropped one");
+		}
+	}
+	
+	@Override
+	public void run() {
+		while (true) {
+			Response r;
+			try {
+				r = pending.take();
+			} catch (InterruptedException e) {
+				LinkLayer.setStatus(LinkLayer.STATUS_UNSPECIFIED_ERROR);
+				continue;
+			}
+			
+			try {
+				send(r);
+			} finally {
+				owed.decrementAndGet();
+			}
+		}
+	}
+	
+	//Waits until the response is due, then transmits it unless it's too late to matter
+	private void send(Response r) {
+		//Sleep until we're nearly there, then spin out the rest
+		long wait = r.due - System.nanoTime();
+		if (wait > SPIN_NANOS) LockSupport.parkNanos(wait - SPIN_NANOS);
+		while (r.due - System.nanoTime() > 0) {
+			Thread.onSpinWait();
+		}
+		
+		long lateBy = System.nanoTime() - r.due;
+		if (lateBy > STALE_NANOS) {
+			synchronized (this) {
+				late++;
+			}
+			if (LinkLayer.debugLevel() == 2) output.println("AckLane: response is " + lateBy/1000000 + " ms late, not sending");
+			return;
+		}
+		try {
+			theRF.transmit(r.packet.getPacket());
+		} catch (Exception e) {
+			if (LinkLayer.debugLevel() == 2) output.println("AckLane: error transmitting response");
+			LinkLayer.setStatus(LinkLayer.STATUS_UNSPECIFIED_ERROR);
+			return;
+		}
+		synchronized (this) {
+			sent++;
+		}
+	}
+	
+	/**
+	 * @return true while we owe another station a response that hasn't finished going out
+	 */
+	public boolean owing() {
+		return owed.get() > 0;
+	}
+	
+	/**
+	 * Prints response statistics to the output stream
+	 */
+	public synchronized void printStats() {
+		output.println("Responses sent: " + sent + ", too late: " + late + ", dropped: " + dropped);
+	}
+}
@@ -0,0 +1,47 @@
+package wifi;
+import rf.RF;
+
+/**
+ * Runs the link layer over the course-provided RF layer.  This is the only
+ * class that touches the rf package.
+ * 
+ * @author Braude and Corpron
+ *
+ */
+public class BradcoRF implements RFInterface {
+
+	private RF theRF;
+	
+	public BradcoRF() {
+		if (RF.aSIFSTime != aSIFSTime || RF.aSlotTime != aSlotTime || RF.aCWmin != aCWmin
+				|| RF.aCWmax != aCWmax || RF.dot11RetryLimit != dot11RetryLimit || RF.aMPDUMaxLength != aMPDUMaxLength) {
+			throw new IllegalStateException("RFInterface's timing constants no longer match rf.RF");
+		}
+		theRF = new RF(null, null);
+	}
+
+	@Override
+	public int transmit(byte[] data) {
+		return theRF.transmit(data);
+	}
+
+	@Override
+	public byte[] receive() {
+		return theRF.receive();
+	}
+
+	@Override
+	public boolean dataWaiting() {
+		return theRF.dataWaiting();
+	}
+
+	@Override
+	public boolean inUse() {
+		return theRF.inUse();
+	}
+
+	@Override
+	public long clock() {
+		return theRF.clock();
+	}
+}
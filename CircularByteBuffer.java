@@ -20,6 +20,9 @@ package wifi;
 
 import java.io.*;
 import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * Implements the Circular Buffer producer/consumer model for bytes.
@@ -111,6 +114,31 @@ public class CircularByteBuffer
 	 * @since ostermillerutils 1.00.00
 	 */
 	protected volatile boolean infinite = false;
+	/**
+	 * Largest size an infinite buffer may grow to in memory.
+	 * Anything past that goes to the spill file, if there is one.
+	 */
+	protected int maxSize = Integer.MAX_VALUE;
+	/**
+	 * Overflow for a size-capped buffer: a ring in a memory-mapped
+	 * temporary file, created the first time it is needed.
+	 * Once anything is in it, new writes go to it too so bytes stay in order.
+	 */
+	protected MappedByteBuffer spill = null;
+	/**
+	 * Capacity of the spill file in bytes, or 0 for no spill file.
+	 */
+	protected int spillSize = 0;
+	/**
+	 * Total bytes ever written to and read from the spill file.
+	 */
+	protected long spillWritten = 0;
+	protected long spillRead = 0;
+	/**
+	 * Most bytes that have been waiting to be read at once,
+	 * in memory and in the spill file together.
+	 */
+	protected int highWater = 0;
 	/**
 	 * True if a write to a full buffer should block until the buffer
 	 * has room, false if the write method should throw an IOException
@@ -157,6 +185,9 @@ public class CircularByteBuffer
 			markPosition = 0;
 			outputStreamClosed = false;
 			inputStreamClosed = false;
+			spillWritten = 0;
+			spillRead = 0;
+			notifyAll();
 		}
 	}
 
@@ -208,7 +239,7 @@ public class CircularByteBuffer
 	 */
 	public int getAvailable(){
 		synchronized (this){
-			return available();
+			return available() + spilled();
 		}
 	}
 
@@ -250,12 +281,43 @@ public class CircularByteBuffer
 	}
 
 	/**
-	 * double the size of the buffer
+	 * Get the most bytes that have been waiting to be read at once,
+	 * counting both memory and the spill file.
+	 *
+	 * @return the high-water mark in bytes
+	 */
+	public int getHighWaterMark(){
+		synchronized (this){
+			return highWater;
+		}
+	}
+
+	/**
+	 * Get the number of bytes currently waiting in the spill file.
+	 *
+	 * @return bytes spilled to disk and not yet read
+	 */
+	public int getSpilled(){
+		synchronized (this){
+			return spilled();
+		}
+	}
+
+	/**
+	 * double the size of the buffer, up to maxSize
 	 *
 	 * @since ostermillerutils 1.00.00
 	 */
 	private void resize(){
-		byte[] newBuffer = new byte[buffer.length * 2];
+		resize((int)Math.min((long)buffer.length * 2, maxSize));
+	}
+
+	/**
+	 * Move the buffer's contents, including any marked bytes,
+	 * into a new array of the given length.
+	 */
+	private void resize(int newLength){
+		byte[] newBuffer = new byte[newLength];
 		int marked = marked();
 		int available = available();
 		if (markPosition <= writePosition){
@@ -276,6 +338,100 @@ public class CircularByteBuffer
 		writePosition = marked + available;
 	}
 
+	/**
+	 * Halve an infinite buffer that has grown but is now mostly empty,
+	 * so that a burst of output doesn't hold on to memory forever.
+	 * It never shrinks below the default size, while anything is
+	 * spilled, or below what an outstanding mark needs.
+	 */
+	private void shrink(){
+		int newLength = buffer.length / 2;
+		if (!infinite || newLength < DEFAULT_SIZE || spilled() > 0) return;
+		if (marked() + available() >= buffer.length / 4 || markSize >= newLength / 2) return;
+		resize(newLength);
+	}
+
+	/**
+	 * Can this buffer make room by growing?
+	 */
+	private boolean canGrow(){
+		return infinite && buffer.length < maxSize;
+	}
+
+	/**
+	 * Bytes waiting in the spill file.
+	 */
+	private int spilled(){
+		return (int)(spillWritten - spillRead);
+	}
+
+	/**
+	 * Room left in the spill file.
+	 */
+	private int spillSpace(){
+		return spillSize - spilled();
+	}
+
+	/**
+	 * Write as much as fits into the spill file, mapping it if needed.
+	 *
+	 * @return the number of bytes written
+	 */
+	private int spillWrite(byte[] cbuf, int off, int len) throws IOException {
+		if (spill == null){
+			File f = File.createTempFile("cbb", ".spill");
+			f.deleteOnExit();
+			try (RandomAccessFile raf = new RandomAccessFile(f, "rw")){
+				spill = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, spillSize);
+			}
+		}
+		int realLen = Math.min(len, spillSpace());
+		int pos = (int)(spillWritten % spillSize);
+		int firstLen = Math.min(realLen, spillSize - pos);
+		ByteBuffer view = spill.duplicate();
+		view.position(pos);
+		view.put(cbuf, off, firstLen);
+		if (realLen > firstLen){
+			view.position(0);
+			view.put(cbuf, off + firstLen, realLen - firstLen);
+		}
+		spillWritten += realLen;
+		return realLen;
+	}
+
+	/**
+	 * Move as much as fits from the spill file back into memory.
+	 */
+	private void refill(){
+		int len = Math.min(spilled(), spaceLeft());
+		while (len > 0){
+			int pos = (int)(spillRead % spillSize);
+			int chunk = Math.min(len, Math.min(spillSize - pos, buffer.length - writePosition));
+			if (writePosition < markPosition){
+				chunk = Math.min(chunk, markPosition - writePosition - 1);
+			}
+			ByteBuffer view = spill.duplicate();
+			view.position(pos);
+			view.get(buffer, writePosition, chunk);
+			spillRead += chunk;
+			writePosition += chunk;
+			if (writePosition == buffer.length){
+				writePosition = 0;
+			}
+			len -= chunk;
+		}
+	}
+
+	/**
+	 * Note how much is buffered, for the high-water mark.
+	 */
+	private void trackHighWater(){
+		int buffered = available() + spilled();
+		if (buffered > highWater){
+			highWater = buffered;
+		}
+	}
+
 	/**
 	 * Space available in the buffer which can be written.
 	 *
@@ -337,6 +493,22 @@ public class CircularByteBuffer
 		}
 	}
 
+	/**
+	 * Block until another thread reads, writes, or closes a stream.
+	 * Must be called while holding this buffer's lock.
+	 *
+	 * @param message message for the IOException thrown if the wait is interrupted.
+	 * @throws IOException if the wait is interrupted.
+	 */
+	private void awaitChange(String message) throws IOException {
+		try {
+			wait();
+		} catch(InterruptedException x){
+			Thread.currentThread().interrupt();
+			throw new IOException(message);
+		}
+	}
+
 	/**
 	 * Create a new buffer with a default capacity.
 	 * Writing to a full buffer will block until space
@@ -413,6 +585,25 @@ public class CircularByteBuffer
 		this.blockingWrite = blockingWrite;
 	}
 
+	/**
+	 * Create a buffer that grows as needed, like an INFINITE_SIZE buffer,
+	 * but never beyond maxSize bytes of memory.  Once it reaches that
+	 * size, up to spillSize more bytes are kept in a memory-mapped
+	 * temporary file.  When both are full, writes block until the
+	 * reader catches up.  The buffer shrinks back towards its default
+	 * size as it drains.
+	 *
+	 * @param maxSize largest in-memory size in bytes
+	 * @param spillSize capacity of the spill file in bytes, or 0 for none
+	 */
+	public CircularByteBuffer(int maxSize, int spillSize){
+		this (INFINITE_SIZE, true);
+		if (maxSize < DEFAULT_SIZE) throw new IllegalArgumentException("Maximum size must be at least " + DEFAULT_SIZE);
+		if (spillSize < 0) throw new IllegalArgumentException("Spill size cannot be negative");
+		this.maxSize = maxSize;
+		this.spillSize = spillSize;
+	}
+
 	/**
 	 * Class for reading from a circular byte buffer.
 	 *
@@ -433,6 +624,7 @@ public class CircularByteBuffer
 		@Override public int available() throws IOException {
 			synchronized (CircularByteBuffer.this){
 				if (inputStreamClosed) throw new IOException("InputStream has been closed, it is not ready.");
+				refill();
 				return (CircularByteBuffer.this.available());
 			}
 		}
@@ -449,6 +641,8 @@ public class CircularByteBuffer
 		@Override public void close() throws IOException {
 			synchronized (CircularByteBuffer.this){
 				inputStreamClosed = true;
+				// wake any writers waiting for space so they see the close
+				CircularByteBuffer.this.notifyAll();
 			}
 		}
 
@@ -498,9 +692,10 @@ public class CircularByteBuffer
 		 * @since ostermillerutils 1.00.00
 		 */
 		@Override public int read() throws IOException {
-			while (true){
-				synchronized (CircularByteBuffer.this){
+			synchronized (CircularByteBuffer.this){
+				while (true){
 					if (inputStreamClosed) throw new IOException("InputStream has been closed; cannot read from a closed InputStream.");
+					refill();
 					int available = CircularByteBuffer.this.available();
 					if (available > 0){
 						int result = buffer[readPosition] & 0xff;
@@ -509,15 +704,13 @@ public class CircularByteBuffer
 							readPosition = 0;
 						}
 						ensureMark();
+						shrink();
+						CircularByteBuffer.this.notifyAll();
 						return result;
 					} else if (outputStreamClosed){
 						return -1;
 					}
-				}
-				try {
-					Thread.sleep(100);
-				} catch(Exception x){
-					throw new IOException("Blocking read operation interrupted.");
+					awaitChange("Blocking read operation interrupted.");
 				}
 			}
 		}
@@ -553,9 +746,10 @@ public class CircularByteBuffer
 		 * @since ostermillerutils 1.00.00
 		 */
 		@Override public int read(byte[] cbuf, int off, int len) throws IOException {
-			while (true){
-				synchronized (CircularByteBuffer.this){
+			synchronized (CircularByteBuffer.this){
+				while (true){
 					if (inputStreamClosed) throw new IOException("InputStream has been closed; cannot read from a closed InputStream.");
+					refill();
 					int available = CircularByteBuffer.this.available();
 					if (available > 0){
 						int length = Math.min(len, available);
@@ -572,15 +766,13 @@ public class CircularByteBuffer
 							readPosition = 0;
 						}
 						ensureMark();
+						shrink();
+						CircularByteBuffer.this.notifyAll();
 						return length;
 					} else if (outputStreamClosed){
 						return -1;
 					}
-				}
-				try {
-					Thread.sleep(100);
-				} catch(Exception x){
-					throw new IOException("Blocking read operation interrupted.");
+					awaitChange("Blocking read operation interrupted.");
 				}
 			}
 		}
@@ -599,6 +791,7 @@ public class CircularByteBuffer
 			synchronized (CircularByteBuffer.this){
 				if (inputStreamClosed) throw new IOException("InputStream has been closed; cannot reset a closed InputStream.");
 				readPosition = markPosition;
+				CircularByteBuffer.this.notifyAll();
 			}
 		}
 
@@ -615,9 +808,10 @@ public class CircularByteBuffer
 		 * @since ostermillerutils 1.00.00
 		 */
 		@Override public long skip(long n) throws IOException, IllegalArgumentException {
-			while (true){
-				synchronized (CircularByteBuffer.this){
+			synchronized (CircularByteBuffer.this){
+				while (true){
 					if (inputStreamClosed) throw new IOException("InputStream has been closed; cannot skip bytes on a closed InputStream.");
+					refill();
 					int available = CircularByteBuffer.this.available();
 					if (available > 0){
 						int length = Math.min((int)n, available);
@@ -632,15 +826,13 @@ public class CircularByteBuffer
 							readPosition = 0;
 						}
 						ensureMark();
+						shrink();
+						CircularByteBuffer.this.notifyAll();
 						return length;
 					} else if (outputStreamClosed){
 						return 0;
 					}
-				}
-				try {
-					Thread.sleep(100);
-				} catch(Exception x){
-					throw new IOException("Blocking read operation interrupted.");
+					awaitChange("Blocking read operation interrupted.");
 				}
 			}
 		}
@@ -674,6 +866,8 @@ public class CircularByteBuffer
 					flush();
 				}
 				outputStreamClosed = true;
+				// wake any readers waiting for data so they see the end of the stream
+				CircularByteBuffer.this.notifyAll();
 			}
 		}
 
@@ -723,16 +917,18 @@ public class CircularByteBuffer
 		 * @since ostermillerutils 1.00.00
 		 */
 		@Override public void write(byte[] cbuf, int off, int len) throws IOException {
-			while (len > 0){
-				synchronized (CircularByteBuffer.this){
+			synchronized (CircularByteBuffer.this){
+				while (len > 0){
 					if (outputStreamClosed) throw new IOException("OutputStream has been closed; cannot write to a closed OutputStream.");
 					if (inputStreamClosed) throw new IOException("Buffer closed by InputStream; cannot write to a closed buffer.");
 					int spaceLeft = spaceLeft();
-					while (infinite && spaceLeft < len){
+					while (canGrow() && spaceLeft < len){
 						resize();
 						spaceLeft = spaceLeft();
 					}
-					if (!blockingWrite && spaceLeft < len) throw new BufferOverflowException();
+					if (!blockingWrite && spaceLeft + spillSpace() < len) throw new BufferOverflowException();
+					// once anything has spilled, memory only takes bytes back from the spill file
+					if (spilled() > 0) spaceLeft = 0;
 					int realLen = Math.min(len, spaceLeft);
 					int firstLen = Math.min(realLen, buffer.length - writePosition);
 					int secondLen = Math.min(realLen - firstLen, buffer.length - markPosition - 1);
@@ -751,12 +947,18 @@ public class CircularByteBuffer
 					}
 					off += written;
 					len -= written;
-				}
-				if (len > 0){
-					try {
-						Thread.sleep(100);
-					} catch(Exception x){
-						throw new IOException("Waiting for available space in buffer interrupted.");
+					if (len > 0 && spillSize > 0){
+						int spilledLen = spillWrite(cbuf, off, len);
+						off += spilledLen;
+						len -= spilledLen;
+						written += spilledLen;
+					}
+					if (written > 0){
+						trackHighWater();
+						CircularByteBuffer.this.notifyAll();
+					}
+					if (len > 0){
+						awaitChange("Waiting for available space in buffer interrupted.");
 					}
 				}
 			}
@@ -778,30 +980,31 @@ public class CircularByteBuffer
 		 */
 		@Override public void write(int c) throws IOException {
 			boolean written = false;
-			while (!written){
-				synchronized (CircularByteBuffer.this){
+			synchronized (CircularByteBuffer.this){
+				while (!written){
 					if (outputStreamClosed) throw new IOException("OutputStream has been closed; cannot write to a closed OutputStream.");
 					if (inputStreamClosed) throw new IOException("Buffer closed by InputStream; cannot write to a closed buffer.");
 					int spaceLeft = spaceLeft();
-					while (infinite && spaceLeft < 1){
+					while (canGrow() && spaceLeft < 1){
 						resize();
 						spaceLeft = spaceLeft();
 					}
-					if (!blockingWrite && spaceLeft < 1) throw new BufferOverflowException();
-					if (spaceLeft > 0){
+					if (!blockingWrite && spaceLeft + spillSpace() < 1) throw new BufferOverflowException();
+					if (spaceLeft > 0 && spilled() == 0){
 						buffer[writePosition] = (byte)(c & 0xff);
 						writePosition++;
 						if (writePosition == buffer.length) {
 							writePosition = 0;
 						}
 						written = true;
+					} else if (spillSpace() > 0){
+						written = spillWrite(new byte[]{(byte)c}, 0, 1) == 1;
 					}
-				}
-				if (!written){
-					try {
-						Thread.sleep(100);
-					} catch(Exception x){
-						throw new IOException("Waiting for available space in buffer interrupted.");
+					if (written){
+						trackHighWater();
+						CircularByteBuffer.this.notifyAll();
+					} else {
+						awaitChange("Waiting for available space in buffer interrupted.");
 					}
 				}
 			}
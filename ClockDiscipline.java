@@ -0,0 +1,152 @@
+package wifi;
+import java.io.PrintWriter;
+import java.util.HashMap;
+
+/**
+ * Keeps our station's clock in step with the others.  For each station we hear
+ * beacons from, it fits a line through the last few (local time, offset) pairs
+ * to estimate both how far ahead that station's clock is and how fast it is
+ * drifting away from ours.  Like 802.11, we follow whichever clock is furthest
+ * ahead and never step our own clock backwards, but between beacons we keep
+ * running at the leader's estimated rate instead of falling behind again.
+ * 
+ * @author Braude and Corpron
+ *
+ */
+public class ClockDiscipline {
+
+	//Number of beacons per source used for the fit
+	private static final int HISTORY = 8;
+	//Largest drift we believe, as a fraction of our clock rate
+	private static final double MAX_DRIFT = 0.01;
+	
+	private RFInterface theRF;
+	
+	//our offset from the RF clock is base + rate*(raw-ref)
+	private long base = 0;
+	private double rate = 0;
+	private long ref = 0;
+	private short leader = -1;
+	
+	private HashMap<Short, History> sources = new HashMap<>();
+	
+	private long lastError = 0;
+	private double meanSquareError = 0;
+	private long beacons = 0;
+	
+	//Recent beacons from a single station
+	private static class History {
+		long[] x = new long[HISTORY]; //raw local clock
+		long[] y = new long[HISTORY]; //their time minus our raw clock
+		int count = 0;
+		int next = 0;
+		double offset; //fitted offset at ref
+		double drift;  //fitted ms of offset gained per ms
+		long ref;
+		
+		void add(long raw, long diff) {
+			x[next] = raw;
+			y[next] = diff;
+			next = (next+1) % HISTORY;
+			if (count < HISTORY) count++;
+			fit(raw);
+		}
+		
+		//Least-squares line through the samples, centered to keep the numbers small
+		private void fit(long raw) {
+			ref = raw;
+			double mx = 0;
+			double my = 0;
+			for (int i = 0; i < count; i++) {
+				mx += x[i]-raw;
+				my += y[i];
+			}
+			mx /= count;
+			my /= count;
+			double sxx = 0;
+			double sxy = 0;
+			for (int i = 0; i < count; i++) {
+				double dx = x[i]-raw-mx;
+				sxx += dx*dx;
+				sxy += dx*(y[i]-my);
+			}
+			drift = sxx == 0 ? 0 : sxy/sxx;
+			drift = Math.max(-MAX_DRIFT, Math.min(MAX_DRIFT, drift));
+			offset = my - drift*mx;
+		}
+		
+		double predict(long raw) {
+			return offset + drift*(raw-ref);
+		}
+	}
+	
+	public ClockDiscipline(RFInterface theRF) {
+		this.theRF = theRF;
+	}
+	
+	/**
+	 * @return the current time in ms, as agreed with the other stations
+	 */
+	public synchronized long now() {
+		long raw = theRF.clock();
+		return raw + offset(raw);
+	}
+	
+	private long offset(long raw) {
+		return base + Math.round(rate*(raw-ref));
+	}
+	
+	/**
+	 * Take a beacon into account.
+	 * @param src the station that sent it
+	 * @param remoteTime what that station's clock reads right now
+	 */
+	public synchronized void beacon(short src, long remoteTime) {
+		long raw = theRF.clock();
+		long diff = remoteTime - raw;
+		long ours = offset(raw);
+		
+		lastError = diff - ours;
+		meanSquareError = beacons == 0 ? lastError*lastError : 0.8*meanSquareError + 0.2*lastError*lastError;
+		beacons++;
+		
+		History h = sources.get(src);
+		if (h == null) {
+			h = new History();
+			sources.put(src, h);
+		}
+		h.add(raw, diff);
+		long theirs = Math.round(h.predict(raw));
+		
+		if (theirs > ours) {
+			//They're ahead, so jump forward and follow their rate from here on
+			leader = src;
+			rebase(raw, theirs, h.drift);
+		} else if (src == leader) {
+			//Still following them: keep our time, but track their latest rate
+			rebase(raw, ours, h.drift);
+		}
+	}
+	
+	private void rebase(long raw, long offset, double drift) {
+		base = offset;
+		ref = raw;
+		rate = drift;
+	}
+	
+	/**
+	 * @return how far our clock was from the last beacon's, in ms.  Positive means we were behind.
+	 */
+	public synchronized long syncError() {
+		return lastError;
+	}
+	
+	/**
+	 * Prints clock statistics to the output stream
+	 * @param output where to write
+	 */
+	public synchronized void printStats(PrintWriter output) {
+		output.println("Clock offset: " + offset(theRF.clock()) + " ms, drift: " + Math.round(rate*1000000) + " ppm, following " + leader);
+		output.println("Sync error: " + lastError + " ms (last), " + Math.round(Math.sqrt(meanSquareError)) + " ms (rms of " + beacons + " beacons)");
+	}
+}
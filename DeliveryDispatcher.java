@@ -0,0 +1,114 @@
+package wifi;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingDeque;
+
+/**
+ * This thread hands received data frames to any registered
+ * {@link LinkLayerListener}s as they arrive.  It sleeps while nobody is
+ * listening, leaving the frames for {@code recv()}.  Frames that arrive while
+ * the listeners are busy are delivered together in the next call.
+ * 
+ * @author Braude and Corpron
+ *
+ */
+public class DeliveryDispatcher implements Runnable {
+
+	//Most frames handed over in one call, so the receive window reopens promptly
+	private static final int max_batch = 64;
+	
+	private PrintWriter output;
+	private LinkedBlockingDeque<Packet> received;
+	private Receiver rec;
+	private CopyOnWriteArrayList<LinkLayerListener> listeners = new CopyOnWriteArrayList<>();
+	
+	private long batches = 0;
+	private long delivered = 0;
+	
+	public DeliveryDispatcher(PrintWriter output, LinkedBlockingDeque<Packet> received, Receiver rec) {
+		this.output = output;
+		this.received = received;
+		this.rec = rec;
+	}
+	
+	public synchronized void add(LinkLayerListener listener) {
+		listeners.add(listener);
+		notifyAll();
+	}
+	
+	/**
+	 * Unregisters a listener.  If it was the last one, frames already handed
+	 * over stay delivered; later ones wait for recv().
+	 */
+	public synchronized void remove(LinkLayerListener listener) {
+		listeners.remove(listener);
+	}
+	
+	/**
+	 * @return true if anyone is listening, in which case recv() shouldn't be used
+	 */
+	public boolean active() {
+		return !listeners.isEmpty();
+	}
+	
+	//Blocks until there's at least one listener
+	private synchronized void awaitListener() throws InterruptedException {
+		while (listeners.isEmpty()) {
+			wait();
+		}
+	}
+	
+	//Takes whatever else is waiting, unless the last listener left while we waited for
+	//the first frame.  Then that frame goes back to the head of the queue for recv().
+	private synchronized boolean claim(Packet first, ArrayList<Packet> batch) {
+		if (listeners.isEmpty()) {
+			received.offerFirst(first);
+			return false;
+		}
+		batch.add(first);
+		received.drainTo(batch, max_batch - 1);
+		return true;
+	}
+	
+	@Override
+	public void run() {
+		ArrayList<Packet> batch = new ArrayList<>(max_batch);
+		while (true) {
+			Packet first;
+			try {
+				awaitListener();
+				first = received.take();
+			} catch (InterruptedException e) {
+				if (LinkLayer.debugLevel() > 0) output.println("DeliveryDispatcher: interrupted, stopping");
+				return;
+			}
+			if (!claim(first, batch)) continue;
+			rec.spaceFreed();
+			
+			ArrayList<Transmission> frames = new ArrayList<>(batch.size());
+			for (Packet p : batch) {
+				frames.add(new Transmission(p.getSrc(), p.getDest(), p.getData()));
+			}
+			batch.clear();
+			batches++;
+			delivered += frames.size();
+			if (LinkLayer.debugLevel() == 4) output.println("DeliveryDispatcher: delivering " + frames.size() + " frames");
+			
+			for (LinkLayerListener listener : listeners) {
+				try {
+					listener.framesArrived(frames);
+				} catch (RuntimeException e) {
+					if (LinkLayer.debugLevel() > 0) output.println("DeliveryDispatcher: listener threw " + e);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Prints delivery statistics to the output stream
+	 */
+	public void printStats() {
+		output.println("Listeners: " + listeners.size() + ", frames delivered: " + delivered + " in " + batches + " calls");
+	}
+}
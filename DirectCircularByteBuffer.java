@@ -0,0 +1,452 @@
+package wifi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ScatteringByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A circular byte buffer kept off the heap in a direct {@link ByteBuffer}.
+ * Like {@link CircularByteBuffer} it has a producer end and a consumer end,
+ * each available as a stream, but each end is also a channel.  Data can be
+ * moved straight between the ring and files or sockets with
+ * {@link #transferTo(WritableByteChannel)} and {@link #transferFrom(ReadableByteChannel)},
+ * without copying through a byte array.
+ * <p>
+ * The buffer has a fixed capacity.  Reads block until data is available and
+ * writes block until there is room (or throw a BufferOverflowException, if
+ * blocking writes are turned off).  Bulk operations copy in at most two pieces,
+ * one on each side of the wrap point.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author Braude and Corpron
+ */
+public class DirectCircularByteBuffer {
+
+	private final static int DEFAULT_SIZE = 64 * 1024;
+	
+	private final ByteBuffer buffer;
+	private final int capacity;
+	//total bytes ever read and written; their difference is the number available
+	private long readCount = 0;
+	private long writeCount = 0;
+	private final boolean blockingWrite;
+	private boolean sourceClosed = false;
+	private boolean sinkClosed = false;
+	//set while a channel transfer works on a reserved region outside the lock
+	private boolean reading = false;
+	private boolean writing = false;
+	
+	private final Source source = new Source();
+	private final Sink sink = new Sink();
+	private final InputStream in = new DirectInputStream();
+	private final OutputStream out = new DirectOutputStream();
+	
+	/**
+	 * Create a buffer with a default capacity and blocking writes.
+	 */
+	public DirectCircularByteBuffer() {
+		this(DEFAULT_SIZE, true);
+	}
+	
+	/**
+	 * Create a buffer with blocking writes.
+	 * @param size capacity in bytes
+	 */
+	public DirectCircularByteBuffer(int size) {
+		this(size, true);
+	}
+	
+	/**
+	 * @param size capacity in bytes
+	 * @param blockingWrite true if writing to a full buffer should block until
+	 *        space is available, false if a BufferOverflowException should be
+	 *        thrown instead.
+	 */
+	public DirectCircularByteBuffer(int size, boolean blockingWrite) {
+		if (size <= 0) throw new IllegalArgumentException("Size must be positive: " + size);
+		buffer = ByteBuffer.allocateDirect(size);
+		capacity = size;
+		this.blockingWrite = blockingWrite;
+	}
+	
+	/**
+	 * @return the channel that empties this buffer.  It is also a ScatteringByteChannel.
+	 */
+	public ScatteringByteChannel getSource() {
+		return source;
+	}
+	
+	/**
+	 * @return the channel that fills this buffer.  It is also a GatheringByteChannel.
+	 */
+	public GatheringByteChannel getSink() {
+		return sink;
+	}
+	
+	/**
+	 * @return a stream that empties this buffer
+	 */
+	public InputStream getInputStream() {
+		return in;
+	}
+	
+	/**
+	 * @return a stream that fills this buffer
+	 */
+	public OutputStream getOutputStream() {
+		return out;
+	}
+	
+	/**
+	 * @return the number of bytes available to be read
+	 */
+	public synchronized int getAvailable() {
+		return available();
+	}
+	
+	/**
+	 * @return the number of bytes that can be written without blocking
+	 */
+	public synchronized int getSpaceLeft() {
+		return capacity - available();
+	}
+	
+	/**
+	 * @return the capacity of this buffer in bytes
+	 */
+	public int getSize() {
+		return capacity;
+	}
+	
+	private int available() {
+		return (int)(writeCount - readCount);
+	}
+	
+	/**
+	 * Block until data arrives or the sink is closed.  Must hold the lock.
+	 * @return false if there will never be anything more to read
+	 */
+	private boolean awaitData() throws IOException {
+		//A transfer in progress owns the readable bytes until it commits
+		while (available() == 0 || reading) {
+			if (sourceClosed) throw new ClosedChannelException();
+			if (sinkClosed && !reading) return false;
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Blocking read operation interrupted.");
+			}
+		}
+		if (sourceClosed) throw new ClosedChannelException();
+		return true;
+	}
+	
+	/**
+	 * Block until there is room to write.  Must hold the lock.
+	 * @param wanted bytes the caller would like to write
+	 */
+	private void awaitSpace(int wanted) throws IOException {
+		while (true) {
+			if (sinkClosed) throw new ClosedChannelException();
+			if (sourceClosed) throw new IOException("Buffer closed by its source; cannot write to a closed buffer.");
+			int space = capacity - available();
+			//A transfer in progress owns the free space until it commits
+			if (!writing && space > 0 && (blockingWrite || space >= wanted)) return;
+			if (!writing && !blockingWrite) throw new BufferOverflowException();
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Waiting for available space in buffer interrupted.");
+			}
+		}
+	}
+	
+	/**
+	 * Get a view of the next readable run of bytes, stopping at the wrap point.
+	 * Must hold the lock.
+	 */
+	private ByteBuffer readable(int max) {
+		int pos = (int)(readCount % capacity);
+		int len = Math.min(max, Math.min(available(), capacity - pos));
+		return region(pos, len);
+	}
+	
+	/**
+	 * Get a view of the next writable run of bytes, stopping at the wrap point.
+	 * Must hold the lock.
+	 */
+	private ByteBuffer writable(int max) {
+		int pos = (int)(writeCount % capacity);
+		int len = Math.min(max, Math.min(capacity - available(), capacity - pos));
+		return region(pos, len);
+	}
+	
+	//A view of len bytes starting at pos in the backing buffer
+	private ByteBuffer region(int pos, int len) {
+		ByteBuffer view = buffer.duplicate();
+		view.limit(pos + len).position(pos);
+		return view;
+	}
+	
+	//Copies as much as fits from the ring into dst, in at most two pieces.  Must hold the lock.
+	private int drainInto(ByteBuffer dst) {
+		int moved = 0;
+		for (int piece = 0; piece < 2 && dst.hasRemaining() && available() > 0; piece++) {
+			ByteBuffer view = readable(dst.remaining());
+			int n = view.remaining();
+			dst.put(view);
+			readCount += n;
+			moved += n;
+		}
+		return moved;
+	}
+	
+	//Copies as much as fits from src into the ring, in at most two pieces.  Must hold the lock.
+	private int fillFrom(ByteBuffer src) {
+		int moved = 0;
+		for (int piece = 0; piece < 2 && src.hasRemaining() && available() < capacity; piece++) {
+			ByteBuffer view = writable(src.remaining());
+			int n = view.remaining();
+			ByteBuffer part = src.duplicate();
+			part.limit(part.position() + n);
+			view.put(part);
+			src.position(src.position() + n);
+			writeCount += n;
+			moved += n;
+		}
+		return moved;
+	}
+	
+	/**
+	 * Move whatever is available straight into a channel, blocking until at
+	 * least some data is available.  The bytes are reserved under the lock
+	 * and written without it, so a slow channel doesn't hold up the producer.
+	 * @param target where to write the data
+	 * @return the number of bytes moved, or -1 if the sink has been closed and the buffer is empty
+	 * @throws IOException if the target fails or the wait is interrupted
+	 */
+	public long transferTo(WritableByteChannel target) throws IOException {
+		ByteBuffer first, second;
+		synchronized (this) {
+			if (!awaitData()) return -1;
+			int avail = available();
+			int pos = (int)(readCount % capacity);
+			int len = Math.min(avail, capacity - pos);
+			first = region(pos, len);
+			second = avail > len ? region(0, avail - len) : null;
+			reading = true;
+		}
+		long moved = 0;
+		try {
+			moved += target.write(first);
+			if (!first.hasRemaining() && second != null) moved += target.write(second);
+		} finally {
+			synchronized (this) {
+				readCount += moved;
+				reading = false;
+				notifyAll();
+			}
+		}
+		return moved;
+	}
+	
+	/**
+	 * Fill free space straight from a channel, blocking until there is some room.
+	 * The space is reserved under the lock and filled without it, so a slow
+	 * channel doesn't hold up the consumer.
+	 * @param src where to read the data from
+	 * @return the number of bytes moved, or -1 if src is at end of stream
+	 * @throws IOException if src fails or the wait is interrupted
+	 */
+	public long transferFrom(ReadableByteChannel src) throws IOException {
+		ByteBuffer first, second;
+		synchronized (this) {
+			awaitSpace(1);
+			int space = capacity - available();
+			int pos = (int)(writeCount % capacity);
+			int len = Math.min(space, capacity - pos);
+			first = region(pos, len);
+			second = space > len ? region(0, space - len) : null;
+			writing = true;
+		}
+		long moved = 0;
+		boolean eof = false;
+		try {
+			int n = src.read(first);
+			if (n < 0) {
+				eof = true;
+			} else {
+				moved += n;
+				if (!first.hasRemaining() && second != null) {
+					n = src.read(second);
+					if (n > 0) moved += n;
+				}
+			}
+		} finally {
+			synchronized (this) {
+				writeCount += moved;
+				writing = false;
+				notifyAll();
+			}
+		}
+		return eof ? -1 : moved;
+	}
+	
+	/**
+	 * Channel for emptying the buffer.
+	 */
+	protected class Source implements ScatteringByteChannel {
+		
+		@Override public int read(ByteBuffer dst) throws IOException {
+			synchronized (DirectCircularByteBuffer.this) {
+				if (!dst.hasRemaining()) return 0;
+				if (!awaitData()) return -1;
+				int n = drainInto(dst);
+				DirectCircularByteBuffer.this.notifyAll();
+				return n;
+			}
+		}
+		
+		@Override public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+			synchronized (DirectCircularByteBuffer.this) {
+				if (!awaitData()) return -1;
+				long n = 0;
+				for (int i = offset; i < offset + length && available() > 0; i++) {
+					n += drainInto(dsts[i]);
+				}
+				DirectCircularByteBuffer.this.notifyAll();
+				return n;
+			}
+		}
+		
+		@Override public long read(ByteBuffer[] dsts) throws IOException {
+			return read(dsts, 0, dsts.length);
+		}
+		
+		@Override public boolean isOpen() {
+			synchronized (DirectCircularByteBuffer.this) {
+				return !sourceClosed;
+			}
+		}
+		
+		@Override public void close() {
+			synchronized (DirectCircularByteBuffer.this) {
+				sourceClosed = true;
+				DirectCircularByteBuffer.this.notifyAll();
+			}
+		}
+	}
+	
+	/**
+	 * Channel for filling the buffer.  Writes block until all the data has been
+	 * written, unless blocking writes are turned off.
+	 */
+	protected class Sink implements GatheringByteChannel {
+		
+		@Override public int write(ByteBuffer src) throws IOException {
+			synchronized (DirectCircularByteBuffer.this) {
+				int n = 0;
+				while (src.hasRemaining()) {
+					awaitSpace(src.remaining());
+					n += fillFrom(src);
+					DirectCircularByteBuffer.this.notifyAll();
+				}
+				return n;
+			}
+		}
+		
+		@Override public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+			synchronized (DirectCircularByteBuffer.this) {
+				if (!blockingWrite) {
+					long total = 0;
+					for (int i = offset; i < offset + length; i++) total += srcs[i].remaining();
+					if (total > capacity - available()) throw new BufferOverflowException();
+				}
+				long n = 0;
+				for (int i = offset; i < offset + length; i++) {
+					n += write(srcs[i]);
+				}
+				return n;
+			}
+		}
+		
+		@Override public long write(ByteBuffer[] srcs) throws IOException {
+			return write(srcs, 0, srcs.length);
+		}
+		
+		@Override public boolean isOpen() {
+			synchronized (DirectCircularByteBuffer.this) {
+				return !sinkClosed;
+			}
+		}
+		
+		@Override public void close() {
+			synchronized (DirectCircularByteBuffer.this) {
+				sinkClosed = true;
+				DirectCircularByteBuffer.this.notifyAll();
+			}
+		}
+	}
+	
+	/**
+	 * Stream view of the source channel.
+	 */
+	protected class DirectInputStream extends InputStream {
+		
+		@Override public int read() throws IOException {
+			synchronized (DirectCircularByteBuffer.this) {
+				if (!awaitData()) return -1;
+				int b = buffer.get((int)(readCount % capacity)) & 0xff;
+				readCount++;
+				DirectCircularByteBuffer.this.notifyAll();
+				return b;
+			}
+		}
+		
+		@Override public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) return 0;
+			return source.read(ByteBuffer.wrap(b, off, len));
+		}
+		
+		@Override public int available() {
+			return getAvailable();
+		}
+		
+		@Override public void close() {
+			source.close();
+		}
+	}
+	
+	/**
+	 * Stream view of the sink channel.
+	 */
+	protected class DirectOutputStream extends OutputStream {
+		
+		@Override public void write(int b) throws IOException {
+			synchronized (DirectCircularByteBuffer.this) {
+				awaitSpace(1);
+				buffer.put((int)(writeCount % capacity), (byte)b);
+				writeCount++;
+				DirectCircularByteBuffer.this.notifyAll();
+			}
+		}
+		
+		@Override public void write(byte[] b, int off, int len) throws IOException {
+			sink.write(ByteBuffer.wrap(b, off, len));
+		}
+		
+		@Override public void close() {
+			sink.close();
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package wifi;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Decides from the destination address alone whether a frame is worth
+ * decoding.  Our own address and broadcast are always accepted; any other
+ * addresses (multicast groups) are kept in a bitset covering the whole 16-bit
+ * address space, so every check is a single array lookup.  The array is
+ * atomic so the receiver sees a join as soon as it's made.
+ * 
+ * @author Braude and Corpron
+ *
+ */
+public class FrameFilter {
+
+	private short ourMAC;
+	private final AtomicLongArray bits = new AtomicLongArray((1 << 16) / 64);
+	
+	public FrameFilter(short ourMAC) {
+		this.ourMAC = ourMAC;
+	}
+	
+	/**
+	 * @param dest a frame's destination address
+	 * @return true if the frame is for us
+	 */
+	public boolean accepts(short dest) {
+		if (dest == ourMAC || dest == -1) return true;
+		int a = dest & 0xFFFF;
+		return (bits.get(a >>> 6) & (1L << a)) != 0;
+	}
+	
+	/**
+	 * Start accepting frames sent to an extra address
+	 * @param addr the address to accept
+	 */
+	public synchronized void add(short addr) {
+		int a = addr & 0xFFFF;
+		bits.set(a >>> 6, bits.get(a >>> 6) | (1L << a));
+	}
+	
+	/**
+	 * Stop accepting frames sent to an extra address
+	 * @param addr the address to stop accepting
+	 */
+	public synchronized void remove(short addr) {
+		int a = addr & 0xFFFF;
+		bits.set(a >>> 6, bits.get(a >>> 6) & ~(1L << a));
+	}
+}
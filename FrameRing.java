@@ -0,0 +1,139 @@
+package wifi;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A preallocated ring of raw frames passed from the RF reader thread to the
+ * receiver.  There must be exactly one thread offering frames and one thread
+ * taking them.  The consumer waits for frames using one of the WS_x strategies
+ * from {@link LinkLayer}: either a fixed one, or whichever one is currently set.
+ * 
+ * @author Braude and Corpron
+ *
+ */
+public class FrameRing {
+
+	//how long a parked consumer sleeps before checking again; a safety net only,
+	//since offer() always sees a consumer that parked before the frame was published
+	private static final long PARK_NANOS = 50000000;
+	
+	private final int mask;
+	private final byte[][] frames;
+	private final long[] arrivals;
+	private final long[] times;
+	//WS_x constant, or -1 to follow the link layer's setting
+	private final int strategy;
+	
+	//next slot to write, only advanced by the producer
+	private final AtomicLong head = new AtomicLong();
+	//next slot to read, only advanced by the consumer
+	private final AtomicLong tail = new AtomicLong();
+	
+	private volatile Thread waiting;
+	private long dropped = 0;
+	private int highWater = 0;
+	
+	/**
+	 * @param size number of frames the ring can hold; rounded up to a power of two
+	 */
+	public FrameRing(int size) {
+		this(size, -1);
+	}
+	
+	/**
+	 * @param size number of frames the ring can hold; rounded up to a power of two
+	 * @param strategy the WS_x constant the consumer always waits with
+	 */
+	public FrameRing(int size, int strategy) {
+		this.strategy = strategy;
+		int cap = Integer.highestOneBit(Math.max(2, size) - 1) << 1;
+		mask = cap - 1;
+		frames = new byte[cap][];
+		arrivals = new long[cap];
+		times = new long[cap];
+	}
+	
+	/**
+	 * Adds a frame, without ever blocking.  Called by the producer only.
+	 * @param frame the raw bytes from the RF layer
+	 * @param arrived System.nanoTime() when it was received
+	 * @param time the link layer's clock when it was received
+	 * @return false if the ring was full and the frame was dropped
+	 */
+	public boolean offer(byte[] frame, long arrived, long time) {
+		long h = head.get();
+		int used = (int)(h - tail.get());
+		if (used > mask) {
+			synchronized (this) {
+				dropped++;
+			}
+			return false;
+		}
+		int i = (int)(h & mask);
+		frames[i] = frame;
+		arrivals[i] = arrived;
+		times[i] = time;
+		//publish the slot before the consumer can see the new head.  This has to be a
+		//full volatile write, so it can't pass our read of waiting below: either we
+		//see the consumer waiting, or it sees the new head before it parks.
+		head.set(h+1);
+		if (used+1 > highWater) highWater = used+1;
+		Thread t = waiting;
+		if (t != null) LockSupport.unpark(t);
+		return true;
+	}
+	
+	/**
+	 * Removes the oldest frame, waiting for one if the ring is empty.  Called by the consumer only.
+	 * @param stamps filled in with the arrival time in ns and the link layer time in ms
+	 * @return the raw frame
+	 */
+	public byte[] take(long[] stamps) {
+		long t = tail.get();
+		while (head.get() == t) {
+			await();
+		}
+		int i = (int)(t & mask);
+		byte[] frame = frames[i];
+		frames[i] = null;
+		stamps[0] = arrivals[i];
+		stamps[1] = times[i];
+		tail.lazySet(t+1);
+		return frame;
+	}
+	
+	private void await() {
+		int strategy = this.strategy >= 0 ? this.strategy : LinkLayer.waitStrategy();
+		if (strategy == LinkLayer.WS_SPIN) {
+			Thread.onSpinWait();
+		} else if (strategy == LinkLayer.WS_YIELD) {
+			Thread.yield();
+		} else {
+			waiting = Thread.currentThread();
+			if (head.get() == tail.get()) LockSupport.parkNanos(this, PARK_NANOS);
+			waiting = null;
+		}
+	}
+	
+	/**
+	 * @return the number of frames waiting to be taken
+	 */
+	public int size() {
+		return (int)(head.get() - tail.get());
+	}
+	
+	/**
+	 * @return frames dropped because the ring was full
+	 */
+	public synchronized long dropped() {
+		return dropped;
+	}
+	
+	/**
+	 * @return the most frames the ring has held at once
+	 */
+	public int highWater() {
+		return highWater;
+	}
+}
@@ -0,0 +1,21 @@
+package wifi;
+
+/**
+ * A listener that sees every frame the receiver hears, whoever it's for.
+ * Register one with {@link LinkLayer#addTap(FrameTap)}.  Taps are called from
+ * their own thread, and frames are dropped rather than queued if a tap falls
+ * behind, so a slow tap never holds up the link layer.
+ * 
+ * @author Braude and Corpron
+ *
+ */
+public interface FrameTap {
+
+	/**
+	 * Called for each frame heard on the medium.  The frame's CRC hasn't been
+	 * checked; call {@link Packet#integrityCheck()} if that matters.
+	 * @param frame the frame
+	 * @param time the link layer's clock when it was received, in ms
+	 */
+	void frameHeard(Packet frame, long time);
+}
@@ -4,6 +4,7 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * This class acts as a thin layer between the GUI client code and the Java-based
@@ -16,9 +17,16 @@ import java.io.PrintWriter;
 
 public class JavaGUIAdapter implements GUIClientInterface 
 {
-	private static Dot11Interface theDot11Layer;
+	// The link layer's output can grow to this much memory before it spills to disk,
+	// and this much disk before the link layer has to wait for the GUI to catch up.
+	private static final int OUTPUT_MEMORY = 1 << 20;
+	private static final int OUTPUT_SPILL = 64 << 20;
+
+	private static LinkLayer theDot11Layer;
 	private static CircularByteBuffer cbb;
 	private static BufferedReader reader;
+	private static CopyOnWriteArrayList<LinkLayerListener> listeners = new CopyOnWriteArrayList<>();
+	private static Thread outputWatcher;
 
 	/**
 	 * An array of addresses to use for the "send" buttons in the GUI.
@@ -41,7 +49,7 @@ public class JavaGUIAdapter implements GUIClientInterface
 	public int initializeLinkLayer(short MACaddr) {
 
 		try {
-			cbb = new CircularByteBuffer(CircularByteBuffer.INFINITE_SIZE);
+			cbb = new CircularByteBuffer(OUTPUT_MEMORY, OUTPUT_SPILL);
 			reader = new BufferedReader(new InputStreamReader(cbb.getInputStream()));
 			theDot11Layer = new LinkLayer(MACaddr, new PrintWriter(cbb.getOutputStream(), true));
 		} catch (Exception e) {
@@ -96,18 +104,83 @@ public class JavaGUIAdapter implements GUIClientInterface
 	 * @return An array of bytes representing characters sent to output stream since last call.
 	 */
 	public byte[] pollForStreamOutput() {
-		String msg = "";
+		StringBuilder msg = new StringBuilder();
 		try {
 			while (reader.ready()) {
-				msg += reader.readLine() + "\n";
+				msg.append(reader.readLine()).append('\n');
 			}
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
-		return msg.getBytes();
+		return msg.toString().getBytes();
+	}
+
+
+	/**
+	 * Registers a listener that's handed arriving data and link layer output as
+	 * soon as they show up, so the GUI doesn't have to poll.  Once a listener is
+	 * registered, watchForIncomingData() and pollForStreamOutput() shouldn't be used.
+	 * @param listener  The listener to add
+	 */
+	public synchronized void addListener(LinkLayerListener listener) {
+		listeners.add(listener);
+		theDot11Layer.addListener(listener);
+		if (outputWatcher == null) {
+			outputWatcher = new Thread(new OutputWatcher());
+			outputWatcher.setDaemon(true);
+			outputWatcher.start();
+		}
+	}
+
+	/**
+	 * Unregisters a listener.
+	 * @param listener  The listener to remove
+	 */
+	public synchronized void removeListener(LinkLayerListener listener) {
+		listeners.remove(listener);
+		theDot11Layer.removeListener(listener);
+	}
+
+	/**
+	 * Blocks until the 802.11~ layer writes a line, then hands it and any other
+	 * complete lines that are ready to the listeners in one call.
+	 */
+	private static class OutputWatcher implements Runnable {
+		public void run() {
+			StringBuilder msg = new StringBuilder();
+			try {
+				for (;;) {
+					String line = reader.readLine();
+					if (line == null) return;
+					msg.append(line).append('\n');
+					while (reader.ready()) {
+						msg.append(reader.readLine()).append('\n');
+					}
+					String text = msg.toString();
+					msg.setLength(0);
+					for (LinkLayerListener listener : listeners) {
+						try {
+							listener.outputWritten(text);
+						} catch (RuntimeException e) {
+							e.printStackTrace();
+						}
+					}
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
 	}
 
+	/**
+	 * Takes a snapshot of the 802.11~ layer's counters for the GUI's metrics panel.
+	 * @return the snapshot, or null if the link layer hasn't been initialized
+	 */
+	public LinkStats getStats() {
+		if (theDot11Layer == null) return null;
+		return theDot11Layer.stats();
+	}
 
 	/**
 	 * The GUI calls this when the user asks to pass command info to the 802.11~ layer.
@@ -0,0 +1,144 @@
+package wifi;
+
+/**
+ * Counts latencies in log-spaced buckets, so percentiles can be read off at any
+ * time without keeping every sample.  Each power of two is split into 16
+ * buckets, so a percentile is within about 6% of the true value.  Samples are
+ * kept to the microsecond; anything under 32 us is exact.
+ * 
+ * @author Braude and Corpron
+ *
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKETS = 16;
+	//Exact buckets for 0..31 us, then 16 per power of two up to 2^40 us (about 12 days)
+	private static final int MAX_MAGNITUDE = 40;
+	private static final int BUCKETS = 2*SUB_BUCKETS + (MAX_MAGNITUDE-4)*SUB_BUCKETS;
+	
+	private long[] counts = new long[BUCKETS];
+	private long count = 0;
+	private long total = 0; //us
+	private long max = 0;   //us
+	
+	/**
+	 * Adds a sample.
+	 * @param nanos the latency in nanoseconds
+	 */
+	public synchronized void record(long nanos) {
+		long us = Math.max(0, nanos / 1000);
+		counts[bucketOf(us)]++;
+		count++;
+		total += us;
+		max = Math.max(max, us);
+	}
+	
+	private static int bucketOf(long us) {
+		if (us < 2*SUB_BUCKETS) return (int)us;
+		int magnitude = Math.min(63 - Long.numberOfLeadingZeros(us), MAX_MAGNITUDE-1);
+		int shift = magnitude - 4;
+		int sub = (int)Math.min(us >> shift, 2*SUB_BUCKETS-1) - SUB_BUCKETS;
+		return 2*SUB_BUCKETS + (magnitude-5)*SUB_BUCKETS + sub;
+	}
+	
+	//The middle of a bucket, in us
+	private static long valueOf(int bucket) {
+		if (bucket < 2*SUB_BUCKETS) return bucket;
+		int magnitude = (bucket - 2*SUB_BUCKETS) / SUB_BUCKETS + 5;
+		int sub = (bucket - 2*SUB_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+		int shift = magnitude - 4;
+		return ((long)sub << shift) + (1L << shift)/2;
+	}
+	
+	/**
+	 * @param percentile between 0 and 100
+	 * @return the latency in nanoseconds that this percentage of samples were at or below, or 0 if there are none
+	 */
+	public synchronized long percentile(double percentile) {
+		if (count == 0) return 0;
+		long rank = (long)Math.ceil(count * Math.min(100, Math.max(0, percentile)) / 100);
+		if (rank >= count) return max * 1000;
+		rank = Math.max(rank, 1);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank) return Math.min(valueOf(i), max) * 1000;
+		}
+		return max * 1000;
+	}
+	
+	public synchronized long count() {
+		return count;
+	}
+	
+	/**
+	 * @return the mean latency in nanoseconds, or 0 if there are no samples
+	 */
+	public synchronized long mean() {
+		return count == 0 ? 0 : total * 1000 / count;
+	}
+	
+	/**
+	 * @return the largest latency in nanoseconds
+	 */
+	public synchronized long max() {
+		return max * 1000;
+	}
+	
+	/**
+	 * Adds another histogram's samples to this one.
+	 * @param other the histogram to add
+	 */
+	public void add(LatencyHistogram other) {
+		LatencyHistogram copy = other.copy();
+		synchronized (this) {
+			for (int i = 0; i < BUCKETS; i++) counts[i] += copy.counts[i];
+			count += copy.count;
+			total += copy.total;
+			max = Math.max(max, copy.max);
+		}
+	}
+	
+	/**
+	 * Returns the samples recorded between an earlier copy of this histogram and
+	 * now.  The difference doesn't know its exact maximum, so max() reports the
+	 * middle of its highest bucket.
+	 * @param earlier a copy taken earlier
+	 * @return a histogram of the samples recorded since
+	 */
+	public synchronized LatencyHistogram since(LatencyHistogram earlier) {
+		LatencyHistogram diff = new LatencyHistogram();
+		for (int i = 0; i < BUCKETS; i++) {
+			diff.counts[i] = Math.max(0, counts[i] - earlier.counts[i]);
+			if (diff.counts[i] > 0) diff.max = Math.min(valueOf(i), max);
+		}
+		diff.count = Math.max(0, count - earlier.count);
+		diff.total = Math.max(0, total - earlier.total);
+		return diff;
+	}
+
+	/**
+	 * @return a copy of this histogram
+	 */
+	public synchronized LatencyHistogram copy() {
+		LatencyHistogram copy = new LatencyHistogram();
+		System.arraycopy(counts, 0, copy.counts, 0, BUCKETS);
+		copy.count = count;
+		copy.total = total;
+		copy.max = max;
+		return copy;
+	}
+	
+	/**
+	 * Returns a copy of this histogram and empties it, for reporting by interval.
+	 * @return the samples recorded since the last reset
+	 */
+	public synchronized LatencyHistogram reset() {
+		LatencyHistogram copy = copy();
+		counts = new long[BUCKETS];
+		count = 0;
+		total = 0;
+		max = 0;
+		return copy;
+	}
+}
@@ -3,13 +3,13 @@ import java.io.PrintWriter;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingDeque;
 
 //import com.sun.xml.internal.ws.policy.privateutil.PolicyUtils.Rfc2396;
 
-import rf.RF;
-
 /**
- * This layer is an implementation of {@link Dot11Interface} using the patented BradCo RF layer.
+ * This layer is an implementation of {@link Dot11Interface} using the patented BradCo RF layer,
+ * or any other {@link RFInterface}.
  * 
  * @author Braude, Corpron, Richards
  */
@@ -17,13 +17,24 @@ public class LinkLayer implements Dot11Interface
 {
 	private static final int queue_size = 4;
 	private static final int ack_size = 2;
+	private static final int ring_size = 64;
 	
-	private static ArrayBlockingQueue<Packet> received = new ArrayBlockingQueue<>(queue_size);
-	private static ArrayBlockingQueue<Packet> outgoingQueue = new ArrayBlockingQueue<>(queue_size);
-	private static ArrayBlockingQueue<Packet> ackQueue = new ArrayBlockingQueue<>(ack_size);
+	//Bounded by receiveQueueSize, which can change at runtime
+	private LinkedBlockingDeque<Packet> received = new LinkedBlockingDeque<>();
+	private ArrayBlockingQueue<Packet> outgoingQueue = new ArrayBlockingQueue<>(queue_size);
+	private ArrayBlockingQueue<Packet> ackQueue = new ArrayBlockingQueue<>(ack_size);
+	private ArrayBlockingQueue<Packet> ctsQueue = new ArrayBlockingQueue<>(ack_size);
 	private HashMap<Short, Integer> outgoingSeq = new HashMap<>();
+	private NetworkAllocationVector nav = new NetworkAllocationVector();
+	private ClockDiscipline clock;
+	private FrameFilter filter;
+	private ReceiveWindows windows = new ReceiveWindows();
+	private TapDispatcher taps;
+	private DeliveryDispatcher deliveries;
+	private MediumMonitor monitor;
+	private MeshRouter router;
 	
-	private RF theRF;           // You'll need one of these eventually
+	private RFInterface theRF;  // You'll need one of these eventually
 	private short ourMAC;       // Our MAC address
 	private PrintWriter output; // The output stream we'll write to
 	
@@ -31,12 +42,21 @@ public class LinkLayer implements Dot11Interface
 	private static int slotSelection = 0;
 	private static int beaconInterval = 8000; //ms
 	private static int status = 0;
-	private static long offset = 0;
+	private static int rtsThreshold = -1; //bytes of data, -1 disables RTS/CTS
+	private static boolean adaptiveRetry = true;
+	private static int waitStrategy = 0;
+	private static int receiveQueueSize = queue_size;
+	private static boolean meshForwarding = false;
 	
 	//Settings for slot selection
 	public static final int SS_RANDOM = 0;
 	public static final int SS_MAX = 1;
 	
+	//Settings for how the receiver waits for frames
+	public static final int WS_PARK = 0;
+	public static final int WS_YIELD = 1;
+	public static final int WS_SPIN = 2;
+	
 	//Status codes
 	public static final int STATUS_SUCCESS = 1;
 	public static final int STATUS_UNSPECIFIED_ERROR = 2;
@@ -52,7 +72,15 @@ public class LinkLayer implements Dot11Interface
 	
 
 	private Thread read;
+	private Thread reader;
 	private Thread writer;
+	private Thread monitorThread;
+	private Thread ackThread;
+	private Thread tapThread;
+	private Thread deliveryThread;
+	private AckLane ackLane;
+	private Receiver rec;
+	private Sender writ;
 
 	/**
 	 * Constructor takes a MAC address and the PrintWriter to which our output will
@@ -61,31 +89,93 @@ public class LinkLayer implements Dot11Interface
 	 * @param output  Output stream associated with GUI
 	 */
 	public LinkLayer(short ourMAC, PrintWriter output) {
+		this(ourMAC, output, bradcoRF(output));
+	}
+
+	/**
+	 * Constructor takes a MAC address, the PrintWriter to which our output will
+	 * be written, and the RF layer to run over.
+	 * @param ourMAC  MAC address
+	 * @param output  Output stream associated with GUI
+	 * @param theRF   The RF layer, such as a {@link SimulatedRF}
+	 */
+	public LinkLayer(short ourMAC, PrintWriter output, RFInterface theRF) {
 		this.ourMAC = ourMAC;
 		this.output = output;
-		if (ourMAC == -1) throw new IllegalArgumentException("MAC Address cannot be the broadcast address (-1)!");
+		this.theRF = theRF;
+		if (Packet.isGroup(ourMAC)) throw new IllegalArgumentException("MAC Address cannot be broadcast (-1) or a group address (below 0)!");
 
-		try {
-            theRF = new RF(null, null);
-        } catch (Exception e) {
-            if (debugLevel > 0) output.println("LinkLayer: Error in Making the RF layer");
-		    LinkLayer.setStatus(STATUS_RF_INIT_FAILED);
-        }
+		clock = new ClockDiscipline(theRF);
 
 		if (debugLevel>0) output.println("LinkLayer initialized.");
         LinkLayer.setStatus(STATUS_SUCCESS);
 		output.println("Send command 0 for a list of commands");
 
 		// Launch threads
-		Receiver rec = new Receiver(theRF, ourMAC, output, received, ackQueue);
-		Sender writ = new Sender(theRF, ourMAC, output, outgoingQueue, ackQueue);
+		ackLane = new AckLane(theRF, output);
+		FrameRing ring = new FrameRing(ring_size);
+		RFReader rfReader = new RFReader(theRF, clock, output, ring);
+		filter = new FrameFilter(ourMAC);
+		taps = new TapDispatcher(output);
+		router = new MeshRouter(this, ourMAC, output, outgoingQueue);
+		rec = new Receiver(theRF, clock, ourMAC, output, received, ackQueue, ctsQueue, nav, ackLane, ring, filter, windows, taps, router, outgoingQueue);
+		monitor = new MediumMonitor(theRF, clock);
+		writ = new Sender(theRF, clock, ourMAC, output, outgoingQueue, ackQueue, ctsQueue, nav, monitor, windows, router, ackLane);
+		deliveries = new DeliveryDispatcher(output, received, rec);
 
 		read = new Thread(rec);
+		reader = new Thread(rfReader);
 		writer = new Thread(writ);
+		monitorThread = new Thread(monitor);
+		ackThread = new Thread(ackLane);
+		tapThread = new Thread(taps);
+		deliveryThread = new Thread(deliveries);
+		//ACKs have to go out on time no matter what else is running
+		ackThread.setPriority(Thread.MAX_PRIORITY);
+		monitorThread.start();
+		ackThread.start();
+		tapThread.start();
+		deliveryThread.start();
+		reader.start();
 		read.start();
 		writer.start();
 	}
 
+	//The course-provided RF layer, or null if it couldn't be started
+	private static RFInterface bradcoRF(PrintWriter output) {
+		try {
+            return bradcoRF();
+        } catch (Exception e) {
+            if (debugLevel > 0) output.println("LinkLayer: Error in Making the RF layer");
+		    LinkLayer.setStatus(STATUS_RF_INIT_FAILED);
+		    return null;
+        }
+	}
+	
+	/**
+	 * Makes the course-provided RF layer.  BradcoRF is loaded by name, so
+	 * everything else builds without the rf package.
+	 * @return a new BradcoRF
+	 * @throws ReflectiveOperationException if BradcoRF or rf.RF isn't on the classpath
+	 */
+	static RFInterface bradcoRF() throws ReflectiveOperationException {
+		return (RFInterface)Class.forName("wifi.BradcoRF").getDeclaredConstructor().newInstance();
+	}
+
+	/**
+	 * @return the queue send() fills and the sender thread drains, for benchmarks
+	 */
+	ArrayBlockingQueue<Packet> outgoingQueue() {
+		return outgoingQueue;
+	}
+
+	/**
+	 * @return the queue the receiver fills and recv() drains, for benchmarks
+	 */
+	LinkedBlockingDeque<Packet> receivedQueue() {
+		return received;
+	}
+
 	/**
 	 * Send method takes a destination, a buffer (array) of data, and the number
 	 * of bytes to send.  See docs for full description.
@@ -98,24 +188,78 @@ public class LinkLayer implements Dot11Interface
 			return 0;
 		}
 		
-		if (!outgoingSeq.containsKey(dest)) {
-			outgoingSeq.put(dest, 0);
-			if (debugLevel == 3) output.println("LinkLayer: new destination. Starting sequence at 0.");
+		// Stations more than a hop away are reached through the mesh, if it's on and knows a route.
+		// Read the route once, so the hop count and next hop can't come from different updates.
+		int route = meshForwarding && !Packet.isGroup(dest) ? router.route(dest) : 0;
+		boolean viaMesh = MeshRouter.hopsOf(route) > 1;
+		int max = viaMesh ? Packet.MAX_MESH_DATA : Packet.MAX_DATA;
+		byte[] acceptedData = data;
+		if (data.length > max) {
+			acceptedData = new byte[max];
+			System.arraycopy(data, 0, acceptedData, 0, max);
+		}
+		Packet p;
+		if (viaMesh) {
+			short via = MeshRouter.nextHopOf(route);
+			if (debugLevel == 3) output.println("LinkLayer: sending to " + dest + " via " + via);
+			p = Packet.makeMesh(ourMAC, via, dest, ourMAC, MeshRouter.HOP_LIMIT, acceptedData, nextSeq(via));
 		} else {
-			if (debugLevel == 3) output.println("LinkLayer: sequence number is " + outgoingSeq.get(dest));
+			// construct packet from dest, data, source is our mac address
+			p = new Packet(ourMAC, dest, acceptedData, Packet.FT_DATA, nextSeq(dest), false);
 		}
-		int seq = outgoingSeq.get(dest);
-		outgoingSeq.put(dest, seq+1);
-		byte[] acceptedData = data;
-		if (data.length > Packet.MAX_DATA) {
-			acceptedData = new byte[Packet.MAX_DATA];
-			System.arraycopy(data, 0, acceptedData, 0, Packet.MAX_DATA);
+		p.setQueued(System.nanoTime());
+		// The receiver may have filled the queue with frames it's relaying since we checked
+		if (!outgoingQueue.offer(p)) {
+			if (debugLevel == 4) output.println("LinkLayer: rejected transmission, too many in queue.");
+			setStatus(STATUS_INSUFFICIENT_BUFFER_SPACE);
+			return 0;
 		}
-		// construct packet from dest, data, source is our mac address
-		Packet p = new Packet(ourMAC, dest, acceptedData, Packet.FT_DATA, seq, false);
-		outgoingQueue.add(p);
 
-		return Math.min(len, data.length);
+		return Math.min(len, acceptedData.length);
+	}
+	
+	/**
+	 * Queues a frame for a {@link StreamEndpoint}.  Stream frames are
+	 * acknowledged and retried like data, but go to the peer's stream handler
+	 * instead of its receive queue.
+	 * @param dest a neighbor; streams don't cross the mesh
+	 * @param segment the frame's data
+	 * @return false if the send queue is full
+	 */
+	boolean sendStream(short dest, byte[] segment) {
+		if (outgoingQueue.remainingCapacity() == 0) return false;
+		Packet p = new Packet(ourMAC, dest, segment, Packet.FT_STREAM, nextSeq(dest), false);
+		p.setQueued(System.nanoTime());
+		return outgoingQueue.offer(p);
+	}
+	
+	/**
+	 * Sets what stream frames are handed to, and who's told how the ones we
+	 * send turn out.  Until one is set, stream frames are refused.
+	 * @param handler the handler, or null
+	 */
+	void setStreamHandler(StreamHandler handler) {
+		rec.setStreamHandler(handler);
+		writ.setStreamHandler(handler);
+	}
+	
+	/**
+	 * Hands out sequence numbers, counting separately for each destination.
+	 * Frames we relay share the count with our own, so this is synchronized.
+	 * @param dest the station the frame goes to next
+	 * @return the sequence number to use
+	 */
+	synchronized int nextSeq(short dest) {
+		Integer seq = outgoingSeq.get(dest);
+		if (seq == null) {
+			seq = 0;
+			if (debugLevel == 3) output.println("LinkLayer: new destination. Starting sequence at 0.");
+		} else {
+			if (debugLevel == 3) output.println("LinkLayer: sequence number is " + seq);
+		}
+		//Wrap to 0 after MAX_SEQ, the way the receiver compares them
+		outgoingSeq.put(dest, (seq+1) & Packet.MAX_SEQ);
+		return seq;
 	}
 
 	/**
@@ -124,6 +268,7 @@ public class LinkLayer implements Dot11Interface
 	 */
 	public int recv(Transmission t) {
 		if (debugLevel == 4) output.println("LinkLayer: blocking on recv()");
+		if (deliveries.active() && debugLevel > 0) output.println("LinkLayer: recv() called while listeners are registered");
 		if (t == null) {
 			setStatus(STATUS_BAD_ADDRESS);
 			return -1;
@@ -132,6 +277,7 @@ public class LinkLayer implements Dot11Interface
 		Packet incoming;
 		try {
 			incoming = received.take();
+			rec.spaceFreed();
 		} catch (Exception e) {
 			if (debugLevel > 0) output.println("Didn't receive a packet, or ran into an error");
             LinkLayer.setStatus(STATUS_UNSPECIFIED_ERROR);
@@ -160,6 +306,103 @@ public class LinkLayer implements Dot11Interface
 		return Math.min(incoming.getData().length, t.getBuf().length);
 	}
 
+	/**
+	 * Registers a tap that will see every frame this station hears, including
+	 * frames for other stations, ACKs and beacons.  While any taps are
+	 * registered the station is in monitor mode.
+	 * @param tap the listener to add
+	 */
+	public void addTap(FrameTap tap) {
+		taps.add(tap);
+	}
+	
+	/**
+	 * Unregisters a tap.  Monitor mode ends when the last one is removed.
+	 * @param tap the listener to remove
+	 */
+	public void removeTap(FrameTap tap) {
+		taps.remove(tap);
+	}
+
+	/**
+	 * Registers a listener that's handed data frames as they arrive, instead of
+	 * leaving them for recv().  Frames that arrive in a burst are delivered
+	 * together.
+	 * @param listener the listener to add
+	 */
+	public void addListener(LinkLayerListener listener) {
+		deliveries.add(listener);
+	}
+	
+	/**
+	 * Unregisters a listener.  Once the last one is gone, frames wait for recv() again.
+	 * @param listener the listener to remove
+	 */
+	public void removeListener(LinkLayerListener listener) {
+		deliveries.remove(listener);
+	}
+
+	/**
+	 * Registers a listener that's told whether each frame we send was delivered,
+	 * how many attempts it took, and how long it took.
+	 * @param listener the listener to add
+	 */
+	public void addTxListener(TxListener listener) {
+		writ.addTxListener(listener);
+	}
+	
+	/**
+	 * Unregisters a transmit listener.
+	 * @param listener the listener to remove
+	 */
+	public void removeTxListener(TxListener listener) {
+		writ.removeTxListener(listener);
+	}
+
+	/**
+	 * Starts accepting frames sent to a multicast group.  Group addresses are
+	 * the negative ones other than broadcast (-1).  Frames to groups we haven't
+	 * joined are dropped from the header alone, before they're decoded.
+	 * @param group the group address
+	 * @return true if we joined, false if the address isn't a group
+	 */
+	public boolean joinGroup(short group) {
+		if (!Packet.isGroup(group) || group == -1) {
+			setStatus(STATUS_BAD_ADDRESS);
+			return false;
+		}
+		if (debugLevel > 0) output.println("LinkLayer: Joining group " + group);
+		filter.add(group);
+		return true;
+	}
+	
+	/**
+	 * Stops accepting frames sent to a multicast group.
+	 * @param group the group address
+	 * @return true if we left, false if the address isn't a group
+	 */
+	public boolean leaveGroup(short group) {
+		if (!Packet.isGroup(group) || group == -1) {
+			setStatus(STATUS_BAD_ADDRESS);
+			return false;
+		}
+		if (debugLevel > 0) output.println("LinkLayer: Leaving group " + group);
+		filter.remove(group);
+		rec.forgetGroup(group);
+		return true;
+	}
+
+	/**
+	 * Takes a snapshot of the link layer's counters.  It only reads counters
+	 * that are kept anyway, so it's cheap enough to call several times a second.
+	 * @return the snapshot
+	 */
+	public LinkStats stats() {
+		long now = clock.now();
+		return new LinkStats(now, writ.txTotals(), rec.rxTotals(), outgoingQueue.size(), received.size(),
+				monitor.busyRatio(now, 2), writ.txLatency());
+	}
+
 	/**
 	 * Returns a current status code.  See docs for full description.
 	 */
@@ -189,6 +432,29 @@ public class LinkLayer implements Dot11Interface
 			} else {
 				output.println("Beacons are disabled.");
 			}
+			if (rtsThreshold >= 0) {
+				output.println("Using RTS/CTS for frames over " + rtsThreshold + " bytes");
+			} else {
+				output.println("RTS/CTS is disabled.");
+			}
+			if (adaptiveRetry) {
+				output.println("Retry limits and backoff adapt to each destination.");
+			} else {
+				output.println("Retry limits and backoff are fixed.");
+			}
+			if (waitStrategy == WS_SPIN) {
+				output.println("Receiver busy-spins waiting for frames.");
+			} else if (waitStrategy == WS_YIELD) {
+				output.println("Receiver yields while waiting for frames.");
+			} else {
+				output.println("Receiver parks while waiting for frames.");
+			}
+			output.println("Receive queue holds " + receiveQueueSize + " frames.");
+			if (meshForwarding) {
+				output.println("Mesh forwarding is on.");
+			} else {
+				output.println("Mesh forwarding is off.");
+			}
 			output.println(
 					"Available commands:\n"
 					+ "(0): current settings and help\n"
@@ -205,6 +471,25 @@ public class LinkLayer implements Dot11Interface
 					+ "\n(3,x): set beacon interval"
 					+ "\n\tx>0: x is the beacon interval in seconds"
 					+ "\n\tx<=0: beacons disabled"
+					+ "\n(4,x): set RTS/CTS threshold"
+					+ "\n\tx>=0: reserve the medium for frames with more than x bytes of data"
+					+ "\n\tx<0: RTS/CTS disabled"
+					+ "\n(5,x): print statistics"
+					+ "\n(6,x): set per-destination retry adaptation"
+					+ "\n\tx=0: fixed retry limit and backoff"
+					+ "\n\tx=1: adapt retry limit and backoff to each destination's loss rate"
+					+ "\n(7,x): set how the receiver waits for frames"
+					+ "\n\tx=0: park (lowest CPU use)"
+					+ "\n\tx=1: yield"
+					+ "\n\tx=2: busy-spin (lowest latency)"
+					+ "\n(8,x): set receive queue size"
+					+ "\n\tx>0: queue up to x frames before telling senders to pause"
+					+ "\n(9,x): join multicast group x (x<-1)"
+					+ "\n(10,x): leave multicast group x"
+					+ "\n(11,x): set mesh forwarding (needs beacons)"
+					+ "\n\tx=0: single hop only"
+					+ "\n\tx=1: learn routes from beacons and relay frames for other stations"
+					+ "\n(12,x): seed the backoff random numbers with x, so a run can be repeated"
 					);
 		}
 		if (cmd == 1) {
@@ -227,13 +512,85 @@ public class LinkLayer implements Dot11Interface
 				output.println("Setting beacon interval to "+ val + " seconds");
 				if (beaconInterval <0 && outgoingQueue.isEmpty()) {
 					//if beacons have just been re-enabled, make sure one gets sent
-					outgoingQueue.add(Packet.makeBeacon(ourMAC, LinkLayer.getTime(theRF)));
+					outgoingQueue.add(Packet.makeBeacon(ourMAC, clock.now()));
 				}
 			} else {
 				output.println("Beacons are disabled.");
 			}
 			beaconInterval = val*1000;
 		}
+		if (cmd == 4) {
+			if (val >= 0) {
+				output.println("Setting RTS/CTS threshold to " + val + " bytes");
+				rtsThreshold = val;
+			} else {
+				output.println("RTS/CTS is disabled.");
+				rtsThreshold = -1;
+			}
+		}
+		if (cmd == 5) {
+			writ.printStats();
+			rec.printStats();
+			ackLane.printStats();
+			taps.printStats();
+			deliveries.printStats();
+			if (meshForwarding) router.printStats();
+		}
+		if (cmd == 6) {
+			adaptiveRetry = val != 0;
+			if (adaptiveRetry) {
+				output.println("Adapting retry limits and backoff to each destination");
+			} else {
+				output.println("Using fixed retry limits and backoff");
+			}
+		}
+		if (cmd == 7) {
+			if (val == WS_PARK) {
+				waitStrategy = WS_PARK;
+				output.println("Receiver will park while waiting for frames");
+			} else if (val == WS_YIELD) {
+				waitStrategy = WS_YIELD;
+				output.println("Receiver will yield while waiting for frames");
+			} else if (val == WS_SPIN) {
+				waitStrategy = WS_SPIN;
+				output.println("Receiver will busy-spin while waiting for frames");
+			} else {
+				output.println("Invalid wait strategy.");
+			}
+		}
+		if (cmd == 8) {
+			if (val > 0) {
+				output.println("Setting receive queue size to " + val + " frames");
+				receiveQueueSize = val;
+				rec.spaceFreed();
+			} else {
+				output.println("Invalid receive queue size.");
+			}
+		}
+		if (cmd == 9 || cmd == 10) {
+			if (val < Short.MIN_VALUE || val >= -1) {
+				output.println("Invalid group address; groups are -32768 to -2.");
+			} else if (cmd == 9) {
+				joinGroup((short)val);
+				output.println("Joined group " + val);
+			} else {
+				leaveGroup((short)val);
+				output.println("Left group " + val);
+			}
+		}
+		if (cmd == 11) {
+			meshForwarding = val != 0;
+			if (meshForwarding) {
+				router.start();
+				output.println("Mesh forwarding on");
+			} else {
+				output.println("Mesh forwarding off");
+			}
+		}
+		if (cmd == 12) {
+			output.println("Seeding backoff with " + val);
+			writ.seedBackoff(val);
+		}
 		return 0;
 	}
 	
@@ -249,14 +606,26 @@ public class LinkLayer implements Dot11Interface
 		return beaconInterval;
 	}
 	
-	protected static long getTime(RF rf) {
-		return rf.clock() + offset;
+	protected static int rtsThreshold() {
+		return rtsThreshold;
 	}
 	
-	protected static void addToOffset(long adjust) {
-		offset += adjust;
+	protected static int receiveQueueSize() {
+		return receiveQueueSize;
 	}
-
+	
+	protected static int waitStrategy() {
+		return waitStrategy;
+	}
+	
+	protected static boolean adaptiveRetry() {
+		return adaptiveRetry;
+	}
+	
+	protected static boolean meshForwarding() {
+		return meshForwarding;
+	}
+	
 	protected static void setStatus(int val) {
         if (val > 0 && val < 11) {
             status = val;
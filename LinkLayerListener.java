@@ -0,0 +1,30 @@
+package wifi;
+
+import java.util.List;
+
+/**
+ * A listener that's told when data arrives for this station and when the link
+ * layer writes to its output stream, so a client doesn't have to poll for either.
+ * Register one with {@link JavaGUIAdapter#addListener(LinkLayerListener)}, or
+ * with {@link LinkLayer#addListener(LinkLayerListener)} for frame arrivals alone.
+ * Bursts are coalesced: each call carries everything that arrived since the
+ * last one.  Calls come from link layer threads, never the GUI's.
+ * 
+ * @author Braude and Corpron
+ *
+ */
+public interface LinkLayerListener {
+
+	/**
+	 * Called when data frames addressed to us (or broadcast) arrive.  While any
+	 * listener is registered, frames go to listeners instead of {@code recv()}.
+	 * @param frames the frames, oldest first, with source, destination and data filled in
+	 */
+	void framesArrived(List<Transmission> frames);
+
+	/**
+	 * Called when the link layer writes to its output stream.
+	 * @param text the complete lines written since the last call
+	 */
+	void outputWritten(String text);
+}
@@ -0,0 +1,72 @@
+package wifi;
+
+/**
+ * A snapshot of the link layer's counters, from {@link LinkLayer#stats()}.
+ * Totals count from when the link layer started; take two snapshots and
+ * compare them to get rates.  The counters are read one at a time without
+ * stopping the link layer, so they can be a frame apart from each other.
+ * 
+ * @author Braude and Corpron
+ *
+ */
+public class LinkStats {
+
+	private long time;
+	private long txFrames;
+	private long txBytes;
+	private long txFailed;
+	private long txAttempts;
+	private long rxFrames;
+	private long rxBytes;
+	private int sendQueue;
+	private int receiveQueue;
+	private double busyRatio;
+	private LatencyHistogram txLatency;
+
+	public LinkStats(long time, long[] txTotals, long[] rxTotals, int sendQueue, int receiveQueue, double busyRatio, LatencyHistogram txLatency) {
+		this.time = time;
+		this.txFrames = txTotals[0];
+		this.txBytes = txTotals[1];
+		this.txFailed = txTotals[2];
+		this.txAttempts = txTotals[3];
+		this.rxFrames = rxTotals[0];
+		this.rxBytes = rxTotals[1];
+		this.sendQueue = sendQueue;
+		this.receiveQueue = receiveQueue;
+		this.busyRatio = busyRatio;
+		this.txLatency = txLatency;
+	}
+
+	/** @return the link layer's clock when the snapshot was taken, in ms */
+	public long getTime() { return time; }
+
+	/** @return data frames sent and acknowledged (broadcasts count once sent) */
+	public long getTxFrames() { return txFrames; }
+
+	/** @return bytes of data in the frames counted by getTxFrames() */
+	public long getTxBytes() { return txBytes; }
+
+	/** @return data frames dropped after running out of retries */
+	public long getTxFailed() { return txFailed; }
+
+	/** @return transmissions of data frames, first tries and retries alike */
+	public long getTxAttempts() { return txAttempts; }
+
+	/** @return data frames received and passed up, not counting duplicates */
+	public long getRxFrames() { return rxFrames; }
+
+	/** @return bytes of data in the frames counted by getRxFrames() */
+	public long getRxBytes() { return rxBytes; }
+
+	/** @return frames waiting to be sent */
+	public int getSendQueue() { return sendQueue; }
+
+	/** @return frames waiting to be picked up by recv() or a listener */
+	public int getReceiveQueue() { return receiveQueue; }
+
+	/** @return the fraction of the last couple of seconds the channel was busy */
+	public double getBusyRatio() { return busyRatio; }
+
+	/** @return latencies from send() to ACK of every delivered frame so far */
+	public LatencyHistogram getTxLatency() { return txLatency; }
+}
@@ -0,0 +1,70 @@
+package wifi;
+
+import java.util.List;
+
+import javax.swing.AbstractListModel;
+
+/**
+ * A list model holding the most recent lines of output, for display in a JList.
+ * Once it holds its maximum number of lines, the oldest lines are discarded as
+ * new ones arrive.  Like all Swing models, it should only be used from the
+ * event-dispatching thread.
+ * 
+ * @author Braude and Corpron
+ */
+public class LogModel extends AbstractListModel<String> 
+{
+	private static final long serialVersionUID = 1L;
+
+	private String[] lines;
+	private int first = 0;   // Index in lines of the oldest line
+	private int count = 0;   // Number of lines held
+
+	/**
+	 * @param maxLines the most lines to keep
+	 */
+	public LogModel(int maxLines) {
+		lines = new String[maxLines];
+	}
+
+	public int getSize() {
+		return count;
+	}
+
+	public String getElementAt(int index) {
+		return lines[(first + index) % lines.length];
+	}
+
+	/**
+	 * Appends a batch of lines, discarding the oldest ones if there isn't room,
+	 * and fires one removal and one addition event for the whole batch.
+	 * @param batch the lines to add
+	 */
+	public void addAll(List<String> batch) {
+		if (batch.isEmpty()) return;
+		int start = Math.max(0, batch.size() - lines.length);   // Lines that wouldn't survive anyway
+		int adding = batch.size() - start;
+		int dropping = Math.max(0, count + adding - lines.length);
+		if (dropping > 0) {
+			first = (first + dropping) % lines.length;
+			count -= dropping;
+			fireIntervalRemoved(this, 0, dropping - 1);
+		}
+		for (int i = start; i < batch.size(); i++) {
+			lines[(first + count) % lines.length] = batch.get(i);
+			count++;
+		}
+		fireIntervalAdded(this, count - adding, count - 1);
+	}
+
+	/**
+	 * Removes all lines.
+	 */
+	public void clear() {
+		if (count == 0) return;
+		int old = count;
+		first = 0;
+		count = 0;
+		fireIntervalRemoved(this, 0, old - 1);
+	}
+}
@@ -0,0 +1,100 @@
+package wifi;
+
+/**
+ * This thread samples the RF layer's carrier sense and publishes the result,
+ * so the sender can check the medium with a single read instead of polling
+ * the RF layer itself.  It also keeps track of how busy the channel has been.
+ * 
+ * @author Braude and Corpron
+ *
+ */
+public class MediumMonitor implements Runnable {
+
+	//How often to sample inUse(), in ms.  The RF layer works in 50 ms steps.
+	public static final int SAMPLE_TIME = 50;
+	//Busy time is counted in one-second buckets, this many of them
+	private static final int BUCKETS = 60;
+	
+	private RFInterface theRF;
+	private ClockDiscipline clock;
+	
+	private volatile boolean busy = true;
+	//System.nanoTime() when the medium last went idle.  Not the synchronized clock,
+	//which jumps forward when we start following a faster station's beacons.
+	private volatile long idleSince = 0;
+	
+	private long[] bucketSecond = new long[BUCKETS];
+	private int[] busySamples = new int[BUCKETS];
+	private int[] totalSamples = new int[BUCKETS];
+	
+	public MediumMonitor(RFInterface theRF, ClockDiscipline clock) {
+		this.theRF = theRF;
+		this.clock = clock;
+		for (int i = 0; i < BUCKETS; i++) bucketSecond[i] = -1;
+	}
+	
+	@Override
+	public void run() {
+		while (true) {
+			boolean inUse = theRF.inUse();
+			if (!inUse && busy) idleSince = System.nanoTime();
+			busy = inUse;
+			record(clock.now(), inUse);
+			try {
+				Thread.sleep(SAMPLE_TIME);
+			} catch (InterruptedException e) {
+				LinkLayer.setStatus(LinkLayer.STATUS_UNSPECIFIED_ERROR);
+			}
+		}
+	}
+	
+	private synchronized void record(long now, boolean inUse) {
+		long second = now/1000;
+		int i = (int)(second % BUCKETS);
+		if (bucketSecond[i] != second) {
+			bucketSecond[i] = second;
+			busySamples[i] = 0;
+			totalSamples[i] = 0;
+		}
+		totalSamples[i]++;
+		if (inUse) busySamples[i]++;
+	}
+	
+	/**
+	 * @return true if the medium was in use at the last sample
+	 */
+	public boolean busy() {
+		return busy;
+	}
+	
+	/**
+	 * How long the medium has been idle
+	 * @return ms since the medium went idle, or 0 if it's busy
+	 */
+	public long idleFor() {
+		if (busy) return 0;
+		return Math.max(0, (System.nanoTime() - idleSince) / 1000000);
+	}
+	
+	/**
+	 * Fraction of samples that found the medium busy over the last few seconds
+	 * @param now the current time in ms
+	 * @param seconds size of the window, at most 60
+	 * @return the busy ratio between 0 and 1, or 0 if there are no samples yet
+	 */
+	public synchronized double busyRatio(long now, int seconds) {
+		long second = now/1000;
+		int b = 0;
+		int t = 0;
+		for (int s = 0; s < Math.min(seconds, BUCKETS); s++) {
+			long want = second - s;
+			int i = (int)(want % BUCKETS);
+			if (bucketSecond[i] == want) {
+				b += busySamples[i];
+				t += totalSamples[i];
+			}
+		}
+		if (t == 0) return 0;
+		return b/(double)t;
+	}
+}
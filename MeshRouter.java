@@ -0,0 +1,260 @@
+package wifi;
+
+import java.io.PrintWriter;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Routes frames to stations beyond radio range.  Every beacon we hear makes
+ * its sender a neighbor, and beacons also carry the sender's routes (a
+ * distance vector), so each station learns how many hops away everyone is
+ * and which neighbor to hand their frames to.  Routes that aren't refreshed
+ * by beacons expire, so a station that moves away is forgotten.
+ * <p>
+ * Each advertised route names its next hop.  A neighbor that is that next
+ * hop treats the route as unreachable (split horizon with poison reverse).
+ * Without this, two stations could keep a dead route alive by learning it
+ * back from each other.
+ * <p>
+ * The table covers the whole 16-bit address space.  Each entry packs the hop
+ * count and next hop into one int, so a route can be looked up with a single
+ * array read and never shows half an update.  The tables take about 900 KB, so
+ * they aren't allocated until the mesh is first used.
+ *
+ * @author Braude and Corpron
+ *
+ */
+public class MeshRouter {
+
+	//Routes this long are unusable, and advertising one withdraws it
+	static final int UNREACHABLE = 16;
+	//Hop limit given to frames we originate
+	static final int HOP_LIMIT = 8;
+	//Each advertised route is an address, a hop count, and the next hop
+	private static final int ROUTE_BYTES = 5;
+	private static final int MAX_ROUTES = (Packet.MAX_DATA - 8) / ROUTE_BYTES;
+	//Beacon intervals a route lasts without being heard again
+	private static final int LIFETIME = 3;
+
+	private LinkLayer link;
+	private short ourMAC;
+	private PrintWriter output;
+	private ArrayBlockingQueue<Packet> outgoingQueue;
+
+	//(hops << 16) | next hop, or 0 for no route.  Null until start().
+	private volatile AtomicIntegerArray routes;
+	//Clock time each route expires, written only under the lock
+	private long[] expires;
+	//Addresses with routes, so advertising doesn't scan the whole table
+	private short[] known;
+	private int knownCount = 0;
+
+	private long relayed = 0;
+	private long delivered = 0;
+	private long noRoute = 0;
+	private long hopLimited = 0;
+	private long queueFull = 0;
+
+	public MeshRouter(LinkLayer link, short ourMAC, PrintWriter output, ArrayBlockingQueue<Packet> outgoingQueue) {
+		this.link = link;
+		this.ourMAC = ourMAC;
+		this.output = output;
+		this.outgoingQueue = outgoingQueue;
+	}
+
+	/**
+	 * Allocates the routing tables, if they haven't been already.  Called when
+	 * the mesh is turned on, and before anything that changes the tables.
+	 */
+	public synchronized void start() {
+		if (routes != null) return;
+		expires = new long[1 << 16];
+		known = new short[1 << 16];
+		routes = new AtomicIntegerArray(1 << 16);
+	}
+
+	/**
+	 * Looks up a route with one read, so the hop count and next hop always agree.
+	 * @param dest a station
+	 * @return the route, for {@link #hopsOf(int)} and {@link #nextHopOf(int)}, or 0 if there's none
+	 */
+	public int route(short dest) {
+		AtomicIntegerArray table = routes;
+		return table == null ? 0 : table.get(dest & 0xFFFF);
+	}
+
+	/**
+	 * @param route a route from {@link #route(short)}
+	 * @return how many hops away its station is, or 0 if there's no route
+	 */
+	public static int hopsOf(int route) {
+		return route >>> 16;
+	}
+
+	/**
+	 * @param route a route from {@link #route(short)}
+	 * @return the neighbor to send its station's frames to; only meaningful if hopsOf() isn't 0
+	 */
+	public static short nextHopOf(int route) {
+		return (short)route;
+	}
+
+	/**
+	 * Learns from a beacon: its sender is a neighbor, and every station it
+	 * can reach without going through us, we can reach through it, one hop further.
+	 * @param beacon a beacon frame
+	 * @param now the current clock time, in ms
+	 */
+	public synchronized void beacon(Packet beacon, long now) {
+		short from = beacon.getSrc();
+		if (from == ourMAC) return;
+		start();
+		long expiry = now + (long)LIFETIME * Math.max(LinkLayer.beaconInterval(), 1000);
+		set(from, 1, from, expiry);
+
+		byte[] data = beacon.getData();
+		for (int i = 8; i + ROUTE_BYTES <= data.length; i += ROUTE_BYTES) {
+			short dest = (short)(((data[i] & 0xFF) << 8) | (data[i+1] & 0xFF));
+			int hops = (data[i+2] & 0xFF) + 1;
+			short via = (short)(((data[i+3] & 0xFF) << 8) | (data[i+4] & 0xFF));
+			//A route that goes back through us is no route at all
+			if (via == ourMAC) hops = UNREACHABLE;
+			if (dest == ourMAC || dest == from || Packet.isGroup(dest)) continue;
+			int current = routes.get(dest & 0xFFFF);
+			int currentHops = current >>> 16;
+			short currentNext = (short)current;
+			if (currentNext == from && currentHops != 0) {
+				//Our route goes through this neighbor, so follow it whether it got better or worse
+				if (hops >= UNREACHABLE) {
+					clear(dest);
+				} else {
+					set(dest, hops, from, expiry);
+				}
+			} else if (hops < UNREACHABLE && (currentHops == 0 || hops < currentHops)) {
+				set(dest, hops, from, expiry);
+			}
+		}
+	}
+
+	/**
+	 * Builds the routes to put in our next beacon, after dropping any that
+	 * have expired.
+	 * @param now the current clock time, in ms
+	 * @return the routes as (address, hops, next hop) entries
+	 */
+	public synchronized byte[] advertisement(long now) {
+		start();
+		expire(now);
+		int count = Math.min(knownCount, MAX_ROUTES);
+		byte[] out = new byte[count * ROUTE_BYTES];
+		for (int i = 0; i < count; i++) {
+			short dest = known[i];
+			out[i*ROUTE_BYTES] = (byte)(dest >> 8);
+			out[i*ROUTE_BYTES+1] = (byte)dest;
+			int route = route(dest);
+			short via = nextHopOf(route);
+			out[i*ROUTE_BYTES+2] = (byte)hopsOf(route);
+			out[i*ROUTE_BYTES+3] = (byte)(via >> 8);
+			out[i*ROUTE_BYTES+4] = (byte)via;
+		}
+		return out;
+	}
+
+	/**
+	 * Handles a mesh frame that isn't for us: passes it to the next hop toward
+	 * its destination, unless it has run out of hops or we have no route.
+	 * @param frame a mesh frame addressed to us
+	 * @return true if it's queued for the next hop.  False if it ran out of hops,
+	 *         we have no route, or the send queue is full, so it shouldn't be ACKed.
+	 */
+	public boolean relay(Packet frame) {
+		short dest = frame.getMeshDest();
+		if (frame.getHopLimit() <= 1) {
+			if (LinkLayer.debugLevel() == 2) output.println("MeshRouter: hop limit reached for frame to " + dest);
+			synchronized (this) {
+				hopLimited++;
+			}
+			return false;
+		}
+		int route = route(dest);
+		if (route == 0) {
+			if (LinkLayer.debugLevel() == 2) output.println("MeshRouter: no route to " + dest);
+			synchronized (this) {
+				noRoute++;
+			}
+			return false;
+		}
+		if (outgoingQueue.remainingCapacity() == 0) {
+			synchronized (this) {
+				queueFull++;
+			}
+			return false;
+		}
+		short via = nextHopOf(route);
+		Packet out = frame.relay(ourMAC, via, link.nextSeq(via));
+		out.setQueued(System.nanoTime());
+		if (!outgoingQueue.offer(out)) {
+			synchronized (this) {
+				queueFull++;
+			}
+			return false;
+		}
+		if (LinkLayer.debugLevel() == 2) output.println("MeshRouter: relaying frame from " + frame.getMeshSrc() + " to " + dest + " via " + via);
+		synchronized (this) {
+			relayed++;
+		}
+		return true;
+	}
+
+	/**
+	 * Counts a mesh frame that reached us as its final destination.
+	 */
+	public synchronized void arrived() {
+		delivered++;
+	}
+
+	private void set(short dest, int hops, short via, long expiry) {
+		int a = dest & 0xFFFF;
+		if (routes.get(a) == 0) known[knownCount++] = dest;
+		routes.set(a, (hops << 16) | (via & 0xFFFF));
+		expires[a] = expiry;
+	}
+
+	private void clear(short dest) {
+		int a = dest & 0xFFFF;
+		if (routes.get(a) == 0) return;
+		routes.set(a, 0);
+		for (int i = 0; i < knownCount; i++) {
+			if (known[i] == dest) {
+				known[i] = known[--knownCount];
+				break;
+			}
+		}
+	}
+
+	private void expire(long now) {
+		for (int i = knownCount - 1; i >= 0; i--) {
+			short dest = known[i];
+			if (expires[dest & 0xFFFF] < now) {
+				if (LinkLayer.debugLevel() == 2) output.println("MeshRouter: route to " + dest + " expired");
+				routes.set(dest & 0xFFFF, 0);
+				known[i] = known[--knownCount];
+			}
+		}
+	}
+
+	/**
+	 * Prints the routing table and forwarding statistics to the output stream
+	 */
+	public synchronized void printStats() {
+		StringBuilder table = new StringBuilder();
+		for (int i = 0; i < knownCount; i++) {
+			short dest = known[i];
+			int route = route(dest);
+			table.append(' ').append(dest).append(hopsOf(route) == 1 ? "" : " via " + nextHopOf(route) + " (" + hopsOf(route) + " hops)").append(';');
+		}
+		output.println("Mesh routes:" + (knownCount == 0 ? " none" : table.toString()));
+		output.println("Mesh frames relayed: " + relayed + ", delivered to us: " + delivered + ", no route: " + noRoute
+				+ ", hop limit reached: " + hopLimited + ", refused while queue full: " + queueFull);
+	}
+}
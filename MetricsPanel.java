@@ -0,0 +1,173 @@
+package wifi;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.GridLayout;
+import java.awt.RenderingHints;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+
+import javax.swing.JComponent;
+import javax.swing.JPanel;
+import javax.swing.Timer;
+
+/**
+ * A panel of rolling charts showing how the link is doing: goodput each way,
+ * retries, ACK latency, queue depths and how busy the channel is.  A Swing
+ * timer takes a {@link LinkStats} snapshot every REFRESH_MS and charts the
+ * change since the last one, so the link layer itself does no extra work.
+ *
+ * @author Braude and Corpron
+ *
+ */
+public class MetricsPanel extends JPanel implements ActionListener {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final int REFRESH_MS = 500;
+	//Points kept per chart: a minute at the default refresh rate
+	public static final int HISTORY = 120;
+
+	private JavaGUIAdapter adapter;
+	private Timer timer;
+	private LinkStats last;
+
+	private Chart txGoodput = new Chart("TX goodput (kbit/s)", "tx");
+	private Chart rxGoodput = new Chart("RX goodput (kbit/s)", "rx");
+	private Chart retries = new Chart("Retries per frame", "retries");
+	private Chart latency = new Chart("ACK latency (ms)", "p50", "p99");
+	private Chart queues = new Chart("Queue depth (frames)", "send", "recv");
+	private Chart busy = new Chart("Channel busy (%)", "busy");
+
+	public MetricsPanel(JavaGUIAdapter adapter) {
+		this.adapter = adapter;
+		setLayout(new GridLayout(0, 1, 0, 4));
+		setPreferredSize(new Dimension(260, 0));
+		add(txGoodput);
+		add(rxGoodput);
+		add(retries);
+		add(latency);
+		add(queues);
+		add(busy);
+		timer = new Timer(REFRESH_MS, this);
+		timer.start();
+	}
+
+	/**
+	 * Takes a new snapshot and adds a point to each chart.  Runs on the
+	 * event-dispatching thread.
+	 */
+	@Override
+	public void actionPerformed(ActionEvent e) {
+		LinkStats now = adapter.getStats();
+		if (now == null) return;
+		if (last != null && now.getTime() > last.getTime()) {
+			double seconds = (now.getTime() - last.getTime()) / 1000.0;
+			txGoodput.add((now.getTxBytes() - last.getTxBytes()) * 8 / 1000.0 / seconds);
+			rxGoodput.add((now.getRxBytes() - last.getRxBytes()) * 8 / 1000.0 / seconds);
+			long finished = (now.getTxFrames() - last.getTxFrames()) + (now.getTxFailed() - last.getTxFailed());
+			long attempts = now.getTxAttempts() - last.getTxAttempts();
+			retries.add(finished == 0 ? 0 : Math.max(0, (double)attempts / finished - 1));
+			LatencyHistogram recent = now.getTxLatency().since(last.getTxLatency());
+			if (recent.count() > 0) {
+				latency.add(recent.percentile(50) / 1e6, recent.percentile(99) / 1e6);
+			} else {
+				latency.add(0, 0);
+			}
+			queues.add(now.getSendQueue(), now.getReceiveQueue());
+			busy.add(now.getBusyRatio() * 100);
+		}
+		last = now;
+	}
+
+	/**
+	 * Stops refreshing, for when the panel is thrown away.
+	 */
+	public void stop() {
+		timer.stop();
+	}
+
+	/**
+	 * One rolling line chart with one or more series.  The vertical scale fits
+	 * the largest value on screen.
+	 */
+	private static class Chart extends JComponent {
+
+		private static final long serialVersionUID = 1L;
+		private static final Color[] COLORS = {new Color(0, 90, 200), new Color(200, 60, 0)};
+
+		private String title;
+		private String[] names;
+		private double[][] points;
+		private int count = 0;
+		private int next = 0;
+
+		Chart(String title, String... names) {
+			this.title = title;
+			this.names = names;
+			points = new double[names.length][HISTORY];
+			setFont(new Font("SansSerif", Font.PLAIN, 11));
+		}
+
+		void add(double... values) {
+			for (int s = 0; s < points.length; s++) {
+				points[s][next] = values[s];
+			}
+			next = (next + 1) % HISTORY;
+			count = Math.min(count + 1, HISTORY);
+			repaint();
+		}
+
+		//The i'th oldest point still on screen
+		private double point(int series, int i) {
+			return points[series][(next - count + i + HISTORY) % HISTORY];
+		}
+
+		@Override
+		protected void paintComponent(Graphics g) {
+			Graphics2D g2 = (Graphics2D)g;
+			g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+			int w = getWidth();
+			int h = getHeight();
+			int top = 16;
+			g2.setColor(Color.WHITE);
+			g2.fillRect(0, 0, w, h);
+			g2.setColor(Color.LIGHT_GRAY);
+			g2.drawRect(0, 0, w-1, h-1);
+
+			double max = 0;
+			for (int s = 0; s < points.length; s++) {
+				for (int i = 0; i < count; i++) max = Math.max(max, point(s, i));
+			}
+			if (max <= 0) max = 1;
+
+			StringBuilder label = new StringBuilder(title);
+			for (int s = 0; s < points.length; s++) {
+				if (count > 0) {
+					label.append(s == 0 ? "  " : " / ").append(names[s]).append(' ')
+						.append(String.format("%.1f", point(s, count-1)));
+				}
+			}
+			g2.setColor(Color.DARK_GRAY);
+			g2.drawString(label.toString(), 4, 12);
+			g2.drawString(String.format("%.1f", max), w - 40, top + 10);
+
+			if (count < 2) return;
+			int plotH = h - top - 4;
+			for (int s = 0; s < points.length; s++) {
+				g2.setColor(COLORS[s % COLORS.length]);
+				int px = 0, py = 0;
+				for (int i = 0; i < count; i++) {
+					int x = w - 2 - (count - 1 - i) * (w - 4) / (HISTORY - 1);
+					int y = top + plotH - (int)(point(s, i) / max * plotH);
+					if (i > 0) g2.drawLine(px, py, x, y);
+					px = x;
+					py = y;
+				}
+			}
+		}
+	}
+}
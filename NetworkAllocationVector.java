@@ -0,0 +1,50 @@
+package wifi;
+
+/**
+ * Virtual carrier sense.  The receiver extends the vector whenever it
+ * overhears a frame announcing how long the medium will be in use, and the
+ * sender treats the medium as busy until it expires.
+ * 
+ * @author Braude and Corpron
+ *
+ */
+public class NetworkAllocationVector {
+
+	//absolute time the medium is reserved until, in ms
+	private volatile long expiry = 0;
+	private long updates = 0;
+	
+	/**
+	 * Reserve the medium until the given time, unless it's already reserved for longer
+	 * @param until absolute time in ms
+	 */
+	public synchronized void update(long until) {
+		if (until > expiry) {
+			expiry = until;
+			updates++;
+		}
+	}
+	
+	/**
+	 * Check whether someone else has reserved the medium
+	 * @param now the current time in ms
+	 * @return true if the reservation hasn't expired yet
+	 */
+	public boolean busy(long now) {
+		return expiry > now;
+	}
+	
+	/**
+	 * @return absolute time in ms the current reservation ends
+	 */
+	public long expiry() {
+		return expiry;
+	}
+	
+	/**
+	 * @return number of times the reservation has been extended
+	 */
+	public synchronized long updates() {
+		return updates;
+	}
+}
@@ -19,14 +19,22 @@ public class Packet {
 	public static final int FT_DATA = 0;
 	public static final int FT_ACK = 1;
 	public static final int FT_BEACON = 2;
+	public static final int FT_MESH = 3;
 	public static final int FT_CTS = 4;
 	public static final int FT_RTS = 5;
+	public static final int FT_STREAM = 6;
 	public static final int MAX_SEQ = 4095;
 	public static final int MAX_BYTE = 256;
 	public static final int NONDATABYTES=10;
+	public static final int MAX_DURATION = 0xFFFF;
+	//Final destination, original source and hop limit, ahead of a mesh frame's data
+	public static final int MESH_HEADER = 5;
+	public static final int MAX_MESH_DATA = MAX_DATA - MESH_HEADER;
 	
 	private byte[] packet;
 	private byte[] data;
+	//System.nanoTime() when send() queued this frame; not part of the frame itself
+	private long queued = 0;
 	
 	/**
 	 * Given appropriate info, build a packet
@@ -85,22 +93,164 @@ public class Packet {
 	 * @return a beacon packet
 	 */
 	public static Packet makeBeacon(short src, long timestamp) {
-		byte[] data = new byte[8];
+		return makeBeacon(src, timestamp, null);
+	}
+	
+	/**
+	 * Make a beacon frame with a given timestamp, followed by extra data such
+	 * as mesh routes
+	 * @param src the caller's MAC address
+	 * @param timestamp the current time in miliseconds
+	 * @param extra bytes to carry after the timestamp, or null
+	 * @return a beacon packet
+	 */
+	public static Packet makeBeacon(short src, long timestamp, byte[] extra) {
+		int more = extra == null ? 0 : extra.length;
+		byte[] data = new byte[8 + more];
 		for (int i = 0; i < 8; i++) {
-			data[data.length-1-i] = (byte)(timestamp>>8*i);
+			data[7-i] = (byte)(timestamp>>8*i);
 		}
+		if (more > 0) System.arraycopy(extra, 0, data, 8, more);
 		Packet p = new Packet(src, (short)-1, data, FT_BEACON, 0, false);
 		return p;
 	}
 	
+	/**
+	 * Make a mesh frame, which carries data toward a station beyond our range
+	 * @param src the caller's MAC address
+	 * @param nextHop the neighbor that will pass it on
+	 * @param finalDest the station the data is for
+	 * @param origSrc the station the data came from
+	 * @param hopLimit how many more times it can be relayed
+	 * @param data the data: maximum of MAX_MESH_DATA bytes
+	 * @param seq the sequence number for nextHop
+	 * @return a mesh packet
+	 */
+	public static Packet makeMesh(short src, short nextHop, short finalDest, short origSrc, int hopLimit, byte[] data, int seq) {
+		byte[] body = new byte[MESH_HEADER + data.length];
+		body[0] = (byte)(finalDest>>8);
+		body[1] = (byte)(finalDest);
+		body[2] = (byte)(origSrc>>8);
+		body[3] = (byte)(origSrc);
+		body[4] = (byte)(hopLimit);
+		System.arraycopy(data, 0, body, MESH_HEADER, data.length);
+		return new Packet(src, nextHop, body, FT_MESH, seq, false);
+	}
+	
+	/**
+	 * Make an ACK frame that also advertises how much room we have left
+	 * @param src the caller's MAC address
+	 * @param dest the station being acknowledged
+	 * @param seq the sequence number being acknowledged
+	 * @param window the number of frames we can still queue
+	 * @return an ACK packet
+	 */
+	public static Packet makeACK(short src, short dest, int seq, int window) {
+		if (window < 0) window = 0;
+		if (window > MAX_DURATION) window = MAX_DURATION;
+		byte[] data = new byte[2];
+		data[0] = (byte)(window>>8);
+		data[1] = (byte)(window);
+		return new Packet(src, dest, data, FT_ACK, seq, false);
+	}
+	
+	/**
+	 * Make an ACK that only reopens our window after the receive queue drained.
+	 * The retry bit marks it, so the sender doesn't take it as confirming a new frame.
+	 * @param src the caller's MAC address
+	 * @param dest the station we told we were full
+	 * @param seq the last sequence number we took from that station
+	 * @param window the number of frames we can now queue
+	 * @return an ACK packet with the retry bit set
+	 */
+	public static Packet makeWindowUpdate(short src, short dest, int seq, int window) {
+		//The window is carried and clamped the same way as a duration
+		return new Packet(src, dest, durationBytes(window), FT_ACK, seq, true);
+	}
+	
+	/**
+	 * Make an RTS frame reserving the medium for the rest of an exchange
+	 * @param src the caller's MAC address
+	 * @param dest the station we want to send data to
+	 * @param duration how long (ms) the medium is needed after this frame
+	 * @return an RTS packet
+	 */
+	public static Packet makeRTS(short src, short dest, long duration) {
+		return new Packet(src, dest, durationBytes(duration), FT_RTS, 0, false);
+	}
+	
+	/**
+	 * Make a CTS frame answering an RTS
+	 * @param src the caller's MAC address
+	 * @param dest the station that sent the RTS
+	 * @param duration how long (ms) the medium is still needed after this frame
+	 * @return a CTS packet
+	 */
+	public static Packet makeCTS(short src, short dest, long duration) {
+		return new Packet(src, dest, durationBytes(duration), FT_CTS, 0, false);
+	}
+	
+	//Durations are carried as two unsigned bytes of data, clamped to MAX_DURATION
+	private static byte[] durationBytes(long duration) {
+		if (duration < 0) duration = 0;
+		if (duration > MAX_DURATION) duration = MAX_DURATION;
+		byte[] data = new byte[2];
+		data[0] = (byte)(duration>>8);
+		data[1] = (byte)(duration);
+		return data;
+	}
+	
 	/**
 	 * Gets the type of the packet
-	 * @return FT_DATA, FT_ACK, FT_CTS, FT_RTS, or FT_BEACON
+	 * @return FT_DATA, FT_ACK, FT_CTS, FT_RTS, FT_MESH, FT_STREAM, or FT_BEACON
 	 */
 	public int getType() {
-		int type = packet[0]>>5;
-		if (type < 0) type *=-1;
-		return type;
+		return typeOf(packet);
+	}
+	
+	/**
+	 * Reads the type straight out of a raw frame, without building a Packet or
+	 * checking the CRC.
+	 * @param raw a frame as received from the RF layer
+	 * @return the 3-bit frame type, or -1 if the frame is too short to have one
+	 */
+	public static int typeOf(byte[] raw) {
+		if (raw.length < NONDATABYTES) return -1;
+		return (raw[0]>>5) & 0x7;
+	}
+	
+	/**
+	 * Reads the destination address straight out of a raw frame, without
+	 * building a Packet or checking the CRC.
+	 * @param raw a frame as received from the RF layer
+	 * @return the destination address; frames too short to have one are reported as addressed to 0
+	 */
+	public static short destOf(byte[] raw) {
+		if (raw.length < NONDATABYTES) return 0;
+		return (short)(((raw[2] & 0xFF) << 8) | (raw[3] & 0xFF));
+	}
+	
+	/**
+	 * Addresses with the high bit set are groups: frames sent to them go to
+	 * every station that has joined, and aren't acknowledged.  Broadcast (-1)
+	 * is the group everyone belongs to.
+	 * @param addr an address
+	 * @return true if the address is a multicast group or broadcast
+	 */
+	public static boolean isGroup(short addr) {
+		return addr < 0;
+	}
+	
+	/**
+	 * Reads the duration field of a raw RTS or CTS frame, without building a
+	 * Packet or checking the CRC.
+	 * @param raw a frame as received from the RF layer
+	 * @return the reserved time in ms, or -1 if the frame isn't an RTS or CTS
+	 */
+	public static long durationOf(byte[] raw) {
+		int type = typeOf(raw);
+		if ((type != FT_RTS && type != FT_CTS) || raw.length < NONDATABYTES+2) return -1;
+		return ((raw[6] & 0xFF) << 8) | (raw[7] & 0xFF);
 	}
 	
 	/**
@@ -115,6 +265,26 @@ public class Packet {
 		return (short) (little + big);
 	}
 	
+	/**
+	 * Compares sequence numbers the way they wrap: after MAX_SEQ comes 0.
+	 * @param seq a sequence number
+	 * @param last an earlier one
+	 * @return true if seq comes after last, by at most half the sequence space
+	 */
+	public static boolean seqAfter(int seq, int last) {
+		int ahead = seqDistance(last, seq);
+		return ahead != 0 && ahead <= (MAX_SEQ+1)/2;
+	}
+	
+	/**
+	 * @param from a sequence number
+	 * @param to a later one
+	 * @return how many steps forward it is from one to the other, allowing for the wrap
+	 */
+	public static int seqDistance(int from, int to) {
+		return (to - from) & MAX_SEQ;
+	}
+	
 	/**
 	 * Check if the packet is a retry
 	 * @return true if the packet is a retry
@@ -167,6 +337,21 @@ public class Packet {
 		return data;
 	}
 
+	/**
+	 * @return System.nanoTime() when this frame was queued for sending, or 0 if it wasn't
+	 */
+	public long getQueued() {
+		return queued;
+	}
+
+	/**
+	 * Records when this frame was queued for sending, so its delivery latency can be measured
+	 * @param queued System.nanoTime() at the time
+	 */
+	public void setQueued(long queued) {
+		this.queued = queued;
+	}
+
     /**
      * Takes the data in the packet and converts it to a long. Used for adjusting clock times
      * from beacons
@@ -179,6 +364,84 @@ public class Packet {
 	    return bytesToInt(6, 13);
     }
 	
+	/**
+	 * @return where a mesh frame is ultimately going, or -1 if it isn't a mesh frame
+	 */
+	public short getMeshDest() {
+		if (getType() != FT_MESH || packet.length < NONDATABYTES+MESH_HEADER) return -1;
+		return (short)bytesToInt(6, 7);
+	}
+	
+	/**
+	 * @return the station a mesh frame started from, or -1 if it isn't a mesh frame
+	 */
+	public short getMeshSrc() {
+		if (getType() != FT_MESH || packet.length < NONDATABYTES+MESH_HEADER) return -1;
+		return (short)bytesToInt(8, 9);
+	}
+	
+	/**
+	 * @return how many more times a mesh frame can be relayed, or -1 if it isn't a mesh frame
+	 */
+	public int getHopLimit() {
+		if (getType() != FT_MESH || packet.length < NONDATABYTES+MESH_HEADER) return -1;
+		return packet[10] & 0xFF;
+	}
+	
+	/**
+	 * @return the data a mesh frame carries, without the mesh header
+	 */
+	public byte[] getMeshData() {
+		byte[] data = new byte[packet.length-NONDATABYTES-MESH_HEADER];
+		System.arraycopy(packet, 6+MESH_HEADER, data, 0, data.length);
+		return data;
+	}
+	
+	/**
+	 * Readdresses a mesh frame for its next hop, without decoding the data.
+	 * The frame is copied once, its header rewritten, its hop limit lowered
+	 * and its CRC recomputed.
+	 * @param src the caller's MAC address
+	 * @param nextHop the neighbor to pass it to
+	 * @param seq the sequence number for nextHop
+	 * @return the frame to relay
+	 */
+	public Packet relay(short src, short nextHop, int seq) {
+		byte[] raw = packet.clone();
+		while (seq > MAX_SEQ) seq -= MAX_SEQ;
+		raw[0] = (byte)((FT_MESH << 5) | (seq >> 8));
+		raw[1] = (byte)(seq);
+		raw[2] = (byte)(nextHop>>8);
+		raw[3] = (byte)(nextHop);
+		raw[4] = (byte)(src>>8);
+		raw[5] = (byte)(src);
+		raw[10] = (byte)(getHopLimit() - 1);
+		CRC32 chksm = new CRC32();
+		chksm.update(raw, 0, raw.length-4);
+		for (int i = 0; i < 4; i++) {
+			raw[raw.length-1-i] = (byte)(chksm.getValue()>>8*i);
+		}
+		return new Packet(raw);
+	}
+	
+	/**
+	 * Reads the duration field carried by RTS and CTS frames
+	 * @return the reserved time in ms, or -1 if the packet isn't an RTS or CTS
+	 */
+	public long getDuration() {
+		return durationOf(packet);
+	}
+	
+	/**
+	 * Reads the receive window advertised in an ACK.  Stations that don't
+	 * advertise one send empty ACKs.
+	 * @return the number of frames the sender can still queue, or -1 if not advertised
+	 */
+	public long getWindow() {
+		if (getType() != FT_ACK || packet.length < NONDATABYTES+2) return -1;
+		return bytesToInt(6, 7);
+	}
+	
 	/**
 	 * Returns the packet as a byte array
 	 * @return an array of bytes laid out as per 802.11~
@@ -192,9 +455,20 @@ public class Packet {
 	 * @return true if the calculated checksum matches the one included with the packet.
 	 */
 	public boolean integrityCheck () {
-		long crc = bytesToInt(packet.length-4,packet.length-1);
+		return integrityCheck(packet);
+	}
+	
+	/**
+	 * Checks the CRC of a raw frame without building a Packet.
+	 * @param raw a frame as received from the RF layer
+	 * @return true if the checksum matches
+	 */
+	public static boolean integrityCheck(byte[] raw) {
+		if (raw.length < NONDATABYTES) return false;
+		long crc = 0;
+		for (int i = raw.length-4; i < raw.length; i++) crc = (crc<<8) | (raw[i] & 0xFF);
 		CRC32 chksm = new CRC32();
-		chksm.update(packet, 0, packet.length-4);
+		chksm.update(raw, 0, raw.length-4);
 		return crc==chksm.getValue();
 	}
 	
@@ -220,6 +494,16 @@ public class Packet {
 		System.out.println("Checksum good? " + p.integrityCheck());
 		System.out.println(p);
 		
+		p = makeRTS((short)555, (short)229, 3000);
+		System.out.println("Type?: " + p.getType() + " Expected: " + FT_RTS);
+		System.out.println("Duration?: " + p.getDuration() + " Expected: 3000");
+		System.out.println("Raw dest?: " + destOf(p.getPacket()) + " Expected: 229");
+		byte[] raw = p.getPacket().clone();
+		raw[NONDATABYTES] ^= 0x40;
+		System.out.println("Damaged RTS passes?: " + integrityCheck(raw) + " Expected: false");
+		System.out.println("0 after 4095?: " + seqAfter(0, MAX_SEQ) + " Expected: true");
+		System.out.println("4095 after 0?: " + seqAfter(MAX_SEQ, 0) + " Expected: false");
+		
 
 		p = makeBeacon((short)100, System.currentTimeMillis());
 		System.out.println("Is this a retry? " + p.getRetry());
@@ -0,0 +1,99 @@
+package wifi;
+
+
+/**
+ * Delivery statistics for a single destination.  The sender uses them to pick
+ * how many times a frame to that peer is worth retrying, and how far its
+ * contention window should grow after a failed attempt.
+ * 
+ * @author Braude and Corpron
+ *
+ */
+public class PeerStats {
+
+	//weight given to the newest attempt in the loss average
+	private static final double ALPHA = 0.25;
+	//peers we've dropped this many frames in a row to are treated as gone
+	private static final int DEAD_AFTER = 2;
+	//above this loss rate, failures are blamed on the link rather than on collisions
+	private static final double LOSSY = 0.5;
+	
+	private short addr;
+	private long frames = 0;
+	private long delivered = 0;
+	private long attempts = 0;
+	private long failures = 0;
+	private double loss = 0;
+	private int droppedInRow = 0;
+	private int lastLimit = RFInterface.dot11RetryLimit;
+	private int lastStage = 0;
+	
+	public PeerStats(short addr) {
+		this.addr = addr;
+	}
+	
+	/**
+	 * Records one transmission attempt that went unanswered
+	 */
+	public synchronized void attemptFailed() {
+		attempts++;
+		failures++;
+		loss = (1-ALPHA)*loss + ALPHA;
+	}
+	
+	/**
+	 * Records a frame that was acknowledged
+	 */
+	public synchronized void delivered() {
+		frames++;
+		delivered++;
+		attempts++;
+		loss = (1-ALPHA)*loss;
+		droppedInRow = 0;
+	}
+	
+	/**
+	 * Records a frame that ran out of retries
+	 */
+	public synchronized void dropped() {
+		frames++;
+		droppedInRow++;
+	}
+	
+	/**
+	 * Picks a retry limit.  Live peers get the full limit, but once we've dropped
+	 * several frames in a row to a peer each new frame only gets a single probe
+	 * until one is acknowledged again.
+	 * @return the number of retries to allow the next frame
+	 */
+	public synchronized int retryLimit() {
+		lastLimit = droppedInRow >= DEAD_AFTER ? 0 : RFInterface.dot11RetryLimit;
+		return lastLimit;
+	}
+	
+	/**
+	 * Picks the backoff stage for a retry.  If this peer is normally reachable a
+	 * failure was probably a collision, so the window doubles as usual.  If the
+	 * link itself is lossy, growing the window won't help and just wastes airtime.
+	 * @param retry how many attempts have failed for this frame
+	 * @return the exponent to use when calculating backoff slots
+	 */
+	public synchronized int backoffStage(int retry) {
+		int stage = retry;
+		if (loss > LOSSY) stage = Math.min(retry, 1);
+		lastStage = stage;
+		return stage;
+	}
+	
+	public synchronized double lossRate() {
+		return loss;
+	}
+	
+	public String toString() {
+		synchronized (this) {
+			return "Peer " + addr + ": " + delivered + "/" + frames + " frames delivered, "
+					+ attempts + " attempts, loss " + Math.round(loss*100) + "%, retry limit "
+					+ lastLimit + ", backoff stage " + lastStage;
+		}
+	}
+}
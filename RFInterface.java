@@ -0,0 +1,56 @@
+package wifi;
+
+/**
+ * Everything the link layer needs from the physical layer.  {@link BradcoRF}
+ * runs it over the course-provided RF layer, and {@link SimulatedRF} over an
+ * in-memory {@link SimulatedMedium} shared by any number of stations.
+ * <p>
+ * The timing constants are copies of the ones in rf.RF, so the link layer
+ * doesn't depend on that package.  BradcoRF checks that they still match.
+ * 
+ * @author Braude and Corpron
+ *
+ */
+public interface RFInterface {
+
+	/** Short interframe space, in ms */
+	public static final int aSIFSTime = 100;
+	/** Length of a contention slot, in ms */
+	public static final int aSlotTime = 200;
+	/** Smallest contention window, in slots */
+	public static final int aCWmin = 3;
+	/** Largest contention window, in slots */
+	public static final int aCWmax = 31;
+	/** How many times a frame is retransmitted before it's dropped */
+	public static final int dot11RetryLimit = 5;
+	/** Largest frame the RF layer will carry, in bytes */
+	public static final int aMPDUMaxLength = 2048;
+
+	/**
+	 * Sends a frame, blocking until it's on the air.
+	 * @param data the frame
+	 * @return the number of bytes sent
+	 */
+	int transmit(byte[] data);
+
+	/**
+	 * Blocks until a frame arrives.
+	 * @return the frame
+	 */
+	byte[] receive();
+
+	/**
+	 * @return true if a frame is waiting to be received
+	 */
+	boolean dataWaiting();
+
+	/**
+	 * @return true if someone is transmitting
+	 */
+	boolean inUse();
+
+	/**
+	 * @return this station's clock, in ms
+	 */
+	long clock();
+}
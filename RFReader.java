@@ -0,0 +1,41 @@
+package wifi;
+import java.io.PrintWriter;
+
+/**
+ * This thread does nothing but drain the RF layer, stamping each frame with
+ * its arrival time and handing it to the receiver through a {@link FrameRing}.
+ * 
+ * @author Braude and Corpron
+ *
+ */
+public class RFReader implements Runnable {
+
+	private RFInterface theRF;
+	private ClockDiscipline clock;
+	private PrintWriter output;
+	private FrameRing ring;
+	
+	public RFReader(RFInterface theRF, ClockDiscipline clock, PrintWriter output, FrameRing ring) {
+		this.theRF = theRF;
+		this.clock = clock;
+		this.output = output;
+		this.ring = ring;
+	}
+	
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				//Should block until data comes in
+				byte[] frame = theRF.receive();
+				long arrived = System.nanoTime();
+				if (!ring.offer(frame, arrived, clock.now())) {
+					if (LinkLayer.debugLevel() == 2) output.println("RFReader: receiver is behind, dropped a frame");
+				}
+			} catch (Exception e) {
+				if (LinkLayer.debugLevel() == 2) output.println("RFReader: error receiving packet!");
+				LinkLayer.setStatus(LinkLayer.STATUS_UNSPECIFIED_ERROR);
+			}
+		}
+	}
+}
@@ -0,0 +1,52 @@
+package wifi;
+
+import java.util.HashMap;
+
+/**
+ * The receive windows other stations have advertised to us in their ACKs:
+ * how many more frames each of them has room to queue.  The receiver records
+ * them and the sender holds off sending to a station whose window is closed.
+ * 
+ * @author Braude and Corpron
+ *
+ */
+public class ReceiveWindows {
+
+	private HashMap<Short, Integer> windows = new HashMap<>();
+	
+	/**
+	 * Record a window advertisement
+	 * @param addr the station that sent it
+	 * @param window the number of frames it can accept
+	 */
+	public synchronized void update(short addr, int window) {
+		windows.put(addr, window);
+		notifyAll();
+	}
+	
+	/**
+	 * @param addr a station's address
+	 * @return true unless the station has told us it has no room
+	 */
+	public synchronized boolean open(short addr) {
+		Integer w = windows.get(addr);
+		return w == null || w > 0;
+	}
+	
+	/**
+	 * Wait for a station to open its window.  Stations that never advertised one are always open.
+	 * @param addr the station's address
+	 * @param timeout longest time to wait, in ms
+	 * @return true if the window opened, false if we gave up waiting
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public synchronized boolean awaitOpen(short addr, long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		while (!open(addr)) {
+			long left = deadline - System.currentTimeMillis();
+			if (left <= 0) return false;
+			wait(left);
+		}
+		return true;
+	}
+}
@@ -1,8 +1,12 @@
 package wifi;
-import rf.RF;
 import java.io.PrintWriter;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
 
 /**
  * This thread listens to the RF layer and delivers
@@ -13,146 +17,382 @@ import java.util.concurrent.ArrayBlockingQueue;
  */
 public class Receiver implements Runnable {
 
-	private RF theRF;
+	private RFInterface theRF;
+	private ClockDiscipline clock;
 	private short ourMAC;
 	private PrintWriter output;
-	private ArrayBlockingQueue<Packet> received;
+	private LinkedBlockingDeque<Packet> received;
 	private ArrayBlockingQueue<Packet> ackQueue;
-	
-    private static final int MAX_PACKETS = 4;
+	private ArrayBlockingQueue<Packet> ctsQueue;
+	private NetworkAllocationVector nav;
+	private AckLane ackLane;
+	private FrameRing ring;
+	private FrameFilter filter;
+	private ReceiveWindows windows;
+	private TapDispatcher taps;
+	private MeshRouter router;
+	private ArrayBlockingQueue<Packet> toSend;
+	private volatile StreamHandler streams;
 	
 	private HashMap<Short, Integer> incomingSeq = new HashMap<>();
-	private HashMap<Short, Integer> broadcastSeq = new HashMap<>();
+	//Last seq seen per (group, sender), keyed by groupKey()
+	private ConcurrentHashMap<Integer, Integer> groupSeq = new ConcurrentHashMap<>();
+	
+	private long foreign = 0;
+	private long damaged = 0;
+	private long overflows = 0;
+	//data frames passed up, written only by this thread and read by stats()
+	private volatile long rxFrames = 0;
+	private volatile long rxBytes = 0;
+	
+	//Stations we've told we're full, and the last sequence number we ACKed for each
+	private HashMap<Short, Integer> starved = new HashMap<>();
 
-	public Receiver(RF theRF, short ourMAC, PrintWriter output, ArrayBlockingQueue<Packet> received, ArrayBlockingQueue<Packet> ackQueue) {
+	public Receiver(RFInterface theRF, ClockDiscipline clock, short ourMAC, PrintWriter output, LinkedBlockingDeque<Packet> received, ArrayBlockingQueue<Packet> ackQueue, ArrayBlockingQueue<Packet> ctsQueue, NetworkAllocationVector nav, AckLane ackLane, FrameRing ring, FrameFilter filter, ReceiveWindows windows, TapDispatcher taps, MeshRouter router, ArrayBlockingQueue<Packet> toSend) {
         this.theRF = theRF;
+        this.clock = clock;
 		this.ourMAC = ourMAC;
 		this.output = output;
 		this.received = received;
 		this.ackQueue = ackQueue;
+		this.ctsQueue = ctsQueue;
+		this.nav = nav;
+		this.ackLane = ackLane;
+		this.ring = ring;
+		this.filter = filter;
+		this.windows = windows;
+		this.taps = taps;
+		this.router = router;
+		this.toSend = toSend;
+	}
+	
+	//Room left in the receive queue, in frames
+	private int window() {
+		return Math.max(0, LinkLayer.receiveQueueSize() - received.size());
 	}
 	
-	//Given a packet, sends an appropriate ACK
-	private void sendAck(Packet p) {
+	//Given a packet, queues an appropriate ACK advertising our receive window
+	private void sendAck(Packet p, long arrived) {
 		if (LinkLayer.debugLevel() > 0) output.println("Receiver: sending ack to " + p.getSrc());
-		Packet ack = new Packet(ourMAC, p.getSrc(), new byte[0], Packet.FT_ACK, p.getSeq(), false);
-		try {
-			//For sending an ACK, we can just wait SIFS and then go.
-			//This works because we're ignoring PIFS messages for this simulation
-			Thread.sleep(theRF.aSIFSTime);
-			theRF.transmit(ack.getPacket());
-		} catch (Exception e) {
-			if (LinkLayer.debugLevel() == 2) output.println("Receiver: error trying to sleep.");
-            LinkLayer.setStatus(LinkLayer.STATUS_UNSPECIFIED_ERROR);
+		int window = window();
+		if (window == 0) {
+			synchronized (starved) {
+				starved.put(p.getSrc(), (int)p.getSeq());
+			}
+		}
+		Packet ack = Packet.makeACK(ourMAC, p.getSrc(), p.getSeq(), window);
+		//For sending an ACK, we can just wait SIFS and then go.
+		//This works because we're ignoring PIFS messages for this simulation
+		ackLane.respond(ack, arrived);
+	}
+	
+	//Given an RTS, queues a CTS that reserves the rest of the exchange
+	private void sendCts(Packet rts, long arrived) {
+		if (LinkLayer.debugLevel() == 2) output.println("Receiver: sending CTS to " + rts.getSrc());
+		//The sender's reservation included the time for this CTS
+		long duration = rts.getDuration() - Sender.ACKTIME;
+		Packet cts = Packet.makeCTS(ourMAC, rts.getSrc(), duration);
+		ackLane.respond(cts, arrived);
+	}
+	
+	//Given a frame meant for someone else, defer for as long as its exchange needs the medium.
+	//This only looks at the header, so it works on frames we haven't decoded.
+	private void updateNAV(byte[] raw, long time) {
+		int type = Packet.typeOf(raw);
+		long duration;
+		if (type == Packet.FT_RTS || type == Packet.FT_CTS) {
+			//A damaged duration field could hold the medium for up to a minute, so only trust a good CRC
+			if (!Packet.integrityCheck(raw)) return;
+			duration = Packet.durationOf(raw);
+		} else if ((type == Packet.FT_DATA || type == Packet.FT_MESH || type == Packet.FT_STREAM) && !Packet.isGroup(Packet.destOf(raw))) {
+			//Unicast data is followed by its ACK
+			duration = RFInterface.aSIFSTime + Sender.ACKTIME;
+		} else {
+			return;
+		}
+		if (LinkLayer.debugLevel() == 2) output.println("Receiver: medium reserved for " + duration + " ms");
+		nav.update(time + duration);
+	}
+	
+	private void handleCTS(Packet cts) {
+		if (LinkLayer.debugLevel() == 2) output.println("Received a CTS, passing to sender");
+		//A stale CTS is useless to the sender, so don't block if it hasn't collected the last one
+		if (!ctsQueue.offer(cts)) {
+			ctsQueue.clear();
+			ctsQueue.offer(cts);
 		}
 	}
 	
 	private void handleACK(Packet ack) {
 		if (LinkLayer.debugLevel() == 2) output.println("Received an ACK, passing to sender");
-		ackQueue.add(ack);
+		long window = ack.getWindow();
+		if (window >= 0) windows.update(ack.getSrc(), (int)window);
+		//A window update doesn't acknowledge anything the sender is waiting on
+		if (ack.getRetry()) return;
+		//Window updates can arrive when the sender isn't waiting, so make room rather than block
+		if (!ackQueue.offer(ack)) {
+			ackQueue.poll();
+			ackQueue.offer(ack);
+		}
 	}
 	
-	private void handleData(Packet incoming) {
-		boolean duplicate = false;
-		if (LinkLayer.debugLevel() == 2) output.println("Received a data packet");
-		if (incoming.getDest() != -1) {
-			//If we don't know the sender, start from 0
-			if (!incomingSeq.containsKey(incoming.getSrc())) {
-				incomingSeq.put(incoming.getSrc(), -1);
+	/**
+	 * Called when the application takes a frame off the receive queue.  Any
+	 * station we told we were full gets a fresh ACK saying there's room again.
+	 * It isn't a reply to anything, so it goes out through the sender like any
+	 * other frame, after carrier sense and backoff.
+	 */
+	public void spaceFreed() {
+		synchronized (starved) {
+			if (starved.isEmpty()) return;
+			int window = window();
+			Iterator<Map.Entry<Short, Integer>> it = starved.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<Short, Integer> e = it.next();
+				//If the send queue is full, leave the station starved and try again next time
+				if (!toSend.offer(Packet.makeWindowUpdate(ourMAC, e.getKey(), e.getValue(), window))) return;
+				if (LinkLayer.debugLevel() == 2) output.println("Receiver: reopening window to " + e.getKey());
+				it.remove();
 			}
-			//Get sequence number of last seen packet
-			int lastSeq = incomingSeq.get(incoming.getSrc());
-			if (incoming.getSeq() > lastSeq+1) {
-				if (LinkLayer.debugLevel() > 0) output.println("Warning: detected a gap in transmissions.");
+		}
+	}
+	
+	//True if we've already taken this frame from its sender, so our ACK must have been lost
+	private boolean seen(Packet incoming) {
+		Integer lastSeq = incomingSeq.get(incoming.getSrc());
+		return lastSeq != null && !Packet.seqAfter(incoming.getSeq(), lastSeq);
+	}
+	
+	//Checks a unicast frame's sequence number against the last one from the same station,
+	//and remembers it if it's new.  The first frame we hear from a station is always new.
+	private boolean duplicate(Packet incoming) {
+		if (seen(incoming)) {
+			if (LinkLayer.debugLevel() == 2) output.println("Received a duplicate packet.");
+			return true;
+		}
+		Integer lastSeq = incomingSeq.get(incoming.getSrc());
+		if (lastSeq != null && Packet.seqDistance(lastSeq, incoming.getSeq()) > 1) {
+			if (LinkLayer.debugLevel() > 0) output.println("Warning: detected a gap in transmissions.");
+		}
+		incomingSeq.put(incoming.getSrc(), (int)incoming.getSeq());
+		return false;
+	}
+	
+	//Given a mesh frame from a neighbor, either keeps it (if it's for us) or passes it on
+	private void handleMesh(Packet incoming, long arrived) {
+		if (LinkLayer.debugLevel() == 2) output.println("Received a mesh packet for " + incoming.getMeshDest());
+		if (incoming.getMeshDest() == ourMAC) {
+			if (received.size() >= LinkLayer.receiveQueueSize()) {
+				if (LinkLayer.debugLevel() == 2) output.println("Receiver: receive queue full, dropped a packet");
+				synchronized (this) {
+					overflows++;
+				}
+				return;
 			}
-			if (incoming.getSeq() <= lastSeq) {
-				if (LinkLayer.debugLevel() == 2) output.println("Received a duplicate packet.");
-				duplicate = true;
+			if (!duplicate(incoming)) {
+				//Pass it up as if the original sender had sent it to us directly
+				byte[] data = incoming.getMeshData();
+				received.add(new Packet(incoming.getMeshSrc(), ourMAC, data, Packet.FT_DATA, incoming.getSeq(), false));
+				rxFrames++;
+				rxBytes += data.length;
+				router.arrived();
 			}
-			incomingSeq.put(incoming.getSrc(), (int)incoming.getSeq());
+			sendAck(incoming, arrived);
+			return;
+		}
+		//Look at the sequence number before relaying, so a retransmission isn't relayed twice
+		if (seen(incoming)) {
+			if (LinkLayer.debugLevel() == 2) output.println("Received a duplicate packet.");
+			sendAck(incoming, arrived);
+			return;
+		}
+		//Only ACK once it's queued for the next hop.  Otherwise the neighbor tries again,
+		//and if we can't forward it at all, its sender finds out the frame failed.
+		if (LinkLayer.meshForwarding() && router.relay(incoming)) {
+			duplicate(incoming);
+			sendAck(incoming, arrived);
+		}
+	}
+	
+	//Given a stream frame, ACKs it only if the stream handler takes it (or already has)
+	private void handleStream(Packet incoming, long arrived) {
+		StreamHandler handler = streams;
+		if (handler == null) {
+			if (LinkLayer.debugLevel() == 2) output.println("Receiver: stream frame with no stream handler, refused");
+			return;
+		}
+		if (seen(incoming)) {
+			if (LinkLayer.debugLevel() == 2) output.println("Received a duplicate packet.");
+			sendAck(incoming, arrived);
+			return;
+		}
+		if (handler.segmentArrived(incoming.getSrc(), incoming.getData())) {
+			duplicate(incoming);
+			sendAck(incoming, arrived);
+		}
+	}
+	
+	/**
+	 * @param handler where stream frames go, or null to refuse them
+	 */
+	public void setStreamHandler(StreamHandler handler) {
+		streams = handler;
+	}
+	
+	private void handleData(Packet incoming, long arrived) {
+		boolean duplicate = false;
+		if (LinkLayer.debugLevel() == 2) output.println("Received a data packet");
+		if (!Packet.isGroup(incoming.getDest())) {
+			duplicate = duplicate(incoming);
 		} else {
-			//There may have been broadcasts from this sender before we joined, so assume
-			//the first one we see has correct seq
-			if (!broadcastSeq.containsKey(incoming.getSrc())) {
-				broadcastSeq.put(incoming.getSrc(), (int)incoming.getSeq());
-				if (LinkLayer.debugLevel() == 2) output.println("New broadcast sender: " + incoming.getSrc());
+			//Senders number each group separately.  There may have been frames from this
+			//sender before we joined, so assume the first one we see has correct seq
+			int key = groupKey(incoming.getDest(), incoming.getSrc());
+			if (!groupSeq.containsKey(key)) {
+				groupSeq.put(key, (int)incoming.getSeq());
+				if (LinkLayer.debugLevel() == 2) output.println("New sender " + incoming.getSrc() + " to group " + incoming.getDest());
 			} else {
-				int lastSeq = broadcastSeq.get(incoming.getSrc());
-				if (incoming.getSeq() > lastSeq+1) {
-					if (LinkLayer.debugLevel() > 0) output.println("Warning: broadcast packet seq out of order.");
-				}
-				if (incoming.getSeq() <= lastSeq) {
+				int lastSeq = groupSeq.get(key);
+				if (!Packet.seqAfter(incoming.getSeq(), lastSeq)) {
 					if (LinkLayer.debugLevel() == 2) output.println("Received a duplicate broadcast packet.");
 					duplicate = true;
+				} else {
+					if (Packet.seqDistance(lastSeq, incoming.getSeq()) > 1) {
+						if (LinkLayer.debugLevel() > 0) output.println("Warning: broadcast packet seq out of order.");
+					}
+					groupSeq.put(key, (int)incoming.getSeq());
 				}
-				broadcastSeq.put(incoming.getSrc(), (int)incoming.getSeq());
 			}
 		}
 		try {
-			if (!duplicate) received.put(incoming);
+			if (!duplicate) {
+				received.put(incoming);
+				rxFrames++;
+				rxBytes += incoming.getData().length;
+			}
 		}
 		catch (Exception e) {
 			if (LinkLayer.debugLevel() == 2) output.println("Receiver: error passing packet to LinkLayer");
             LinkLayer.setStatus(LinkLayer.STATUS_UNSPECIFIED_ERROR);
 		}
 		if (incoming.getDest() == this.ourMAC) {
-			sendAck(incoming);
+			sendAck(incoming, arrived);
 		}
 	}
 
+	private static int groupKey(short group, short src) {
+		return (group << 16) | (src & 0xFFFF);
+	}
+
+	/**
+	 * Forgets the sequence numbers seen on a group, so a later rejoin starts
+	 * fresh rather than discarding frames as duplicates.
+	 * @param group the group we left
+	 */
+	public void forgetGroup(short group) {
+		groupSeq.keySet().removeIf(key -> (short)(key >> 16) == group);
+	}
+
 	private void adjustClock(Packet packet, long time) {
 	    long beaconTime = packet.getBeaconTime();
 	    if (beaconTime != -1) {
-	        long unpackTime = LinkLayer.getTime(theRF)-time;
+	        long unpackTime = clock.now()-time;
             if (LinkLayer.debugLevel() == 5) output.println("Reciever: Beacon took a time of "+unpackTime+" to process");
 	        long adjustedTime = beaconTime + unpackTime;
             if (LinkLayer.debugLevel() == 5) output.println("Reciever: Beacon gives the time as "+adjustedTime);
-	        long dif = adjustedTime-LinkLayer.getTime(theRF);
-            if (LinkLayer.debugLevel() == 5) output.println("Reciever: Beacon has a difference of "+dif+" in time");
-	        if (dif > 0) {
-                if (LinkLayer.debugLevel() == 5) output.println("Receiver: Clock Time adjusted");
-	            LinkLayer.addToOffset(dif);
-            }
-            if (LinkLayer.debugLevel() == 5) output.println("Reciever: Ignored Beacon");
+	        clock.beacon(packet.getSrc(), adjustedTime);
+            if (LinkLayer.debugLevel() == 5) output.println("Reciever: Beacon had a difference of "+clock.syncError()+" in time");
             return;
         }
         if (LinkLayer.debugLevel() == 2) output.println("Receiver: adjustClock called on a packet that isn't a Beacon");
         LinkLayer.setStatus(LinkLayer.STATUS_UNSPECIFIED_ERROR);
     }
 
+	/**
+	 * Totals for the data frames we've passed up, for {@link LinkStats}.
+	 * @return frames and bytes received
+	 */
+	public long[] rxTotals() {
+		return new long[] {rxFrames, rxBytes};
+	}
+
+	/**
+	 * Prints receiver statistics to the output stream
+	 */
+	public void printStats() {
+		output.println("Receive ring: " + ring.size() + " waiting, high water " + ring.highWater() + ", dropped " + ring.dropped());
+		synchronized (this) {
+			output.println("Frames for other stations: " + foreign + ", damaged frames: " + damaged);
+			output.println("Receive queue: " + received.size() + "/" + LinkLayer.receiveQueueSize() + ", dropped while full: " + overflows);
+		}
+	}
+
 	@Override
 	public void run() {
 		Packet incoming;
+		long[] stamps = new long[2];
 
 		// Always check for incoming data
 		while (true) {
 			try {
-				//Should block until data comes in
-				byte[] packet = theRF.receive();
-				long beaconTime = LinkLayer.getTime(theRF);
+				//Waits (according to the wait strategy) until the reader hands us a frame
+				byte[] packet = ring.take(stamps);
+				long arrived = stamps[0];
+				long beaconTime = stamps[1];
+				
+				//In monitor mode, everything we hear goes to the taps as well
+				if (taps.active()) taps.publish(packet, beaconTime);
+				
+				//Throw out other stations' frames from the header alone, before decoding or checksumming
+				if (!filter.accepts(Packet.destOf(packet))) {
+					if (LinkLayer.debugLevel() == 2) output.println("Receiver: packet received, but it's not ours.");
+					synchronized (this) {
+						foreign++;
+					}
+					updateNAV(packet, beaconTime);
+					continue;
+				}
+				
 				incoming = new Packet(packet);
 				
 				if (!incoming.integrityCheck()) {
 					if (LinkLayer.debugLevel() == 2) output.println("Receiver: received a damaged packet");
+					synchronized (this) {
+						damaged++;
+					}
 					continue;
 				}
 				
-				//If the data is meant for us, or for everyone, mark it
-				if (incoming.getDest() == this.ourMAC || incoming.getDest() == -1) {
-					if (LinkLayer.debugLevel() == 2) output.println("Receiver: received a packet!");
-					if (incoming.getType() == Packet.FT_ACK) {
-						handleACK(incoming);
-					} else if (incoming.getType() == Packet.FT_DATA && received.size() <= MAX_PACKETS) {
-						handleData(incoming);
-					}  else if (incoming.getType() == Packet.FT_BEACON) {
-                        if (incoming.getType() == Packet.FT_BEACON) {
-                            if (LinkLayer.debugLevel() == 5 || LinkLayer.debugLevel() == 2) output.println("Receiver: received a Beacon!");
-                            adjustClock(incoming, beaconTime);
-                        }
+				//The filter only lets through frames meant for us, for everyone, or for a group we joined
+				if (LinkLayer.debugLevel() == 2) output.println("Receiver: received a packet!");
+				if (incoming.getType() == Packet.FT_ACK) {
+					handleACK(incoming);
+				} else if (incoming.getType() == Packet.FT_RTS && incoming.getDest() == this.ourMAC) {
+					//Only answer if nobody else has the medium reserved
+					if (!nav.busy(beaconTime)) sendCts(incoming, arrived);
+				} else if (incoming.getType() == Packet.FT_CTS && incoming.getDest() == this.ourMAC) {
+					handleCTS(incoming);
+				} else if (incoming.getType() == Packet.FT_DATA) {
+					if (received.size() < LinkLayer.receiveQueueSize()) {
+						handleData(incoming, arrived);
+					} else {
+						//No room, so no ACK.  The sender should have seen our window close.
+						if (LinkLayer.debugLevel() == 2) output.println("Receiver: receive queue full, dropped a packet");
+						synchronized (this) {
+							overflows++;
+						}
+					}
+				} else if (incoming.getType() == Packet.FT_MESH && incoming.getDest() == this.ourMAC) {
+					handleMesh(incoming, arrived);
+				} else if (incoming.getType() == Packet.FT_STREAM && incoming.getDest() == this.ourMAC) {
+					handleStream(incoming, arrived);
+				}  else if (incoming.getType() == Packet.FT_BEACON) {
+                    if (incoming.getType() == Packet.FT_BEACON) {
+                        if (LinkLayer.debugLevel() == 5 || LinkLayer.debugLevel() == 2) output.println("Receiver: received a Beacon!");
+                        adjustClock(incoming, beaconTime);
+                        if (LinkLayer.meshForwarding()) router.beacon(incoming, clock.now());
                     }
-				} else {
-					if (LinkLayer.debugLevel() == 2) output.println("Receiver: packet received, but it's not ours.");
-				}
+                }
 
 			} catch (Exception e){
 				if (LinkLayer.debugLevel() == 2) output.println("Receiver: error receiving packet!");
@@ -0,0 +1,182 @@
+package wifi;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Wraps an RF layer and records what the station saw into a file: every frame
+ * received, every change in carrier sense, and the length of every frame we
+ * sent, each with its time.  {@link ReplayRF} plays the file back into a
+ * station, so a problem seen once can be reproduced at a desk.
+ * <p>
+ * The file is a short header followed by records.  The header holds the
+ * station's starting clock and the seed its backoff was drawn from, so a
+ * replay can make the same random choices.  Each record is a type
+ * byte, the microseconds since the previous record as a variable-length
+ * integer, and then, for frames, the length and the bytes.  Carrier sense is
+ * only recorded when it changes, so a quiet channel costs nothing.
+ *
+ * @author Braude and Corpron
+ *
+ */
+public class RecordingRF implements RFInterface {
+
+	static final int MAGIC = 0x52465243; //"RFRC"
+	static final int VERSION = 2;
+
+	static final int REC_FRAME = 1;
+	static final int REC_BUSY = 2;
+	static final int REC_IDLE = 3;
+	static final int REC_SENT = 4;
+
+	//Flush at least this often, so a crash loses little
+	private static final long FLUSH_NANOS = 1000000000L;
+
+	private RFInterface theRF;
+	private PrintWriter output;
+	private DataOutputStream out;
+	private long start;
+	private long last;
+	private long lastFlush;
+	private boolean busy = false;
+	private boolean failed = false;
+	private long records = 0;
+
+	/**
+	 * @param theRF the RF layer to record
+	 * @param output where to report a recording that fails
+	 * @param file where to write the recording
+	 * @param seed the seed the station's backoff uses (see command 12)
+	 * @throws IOException if the file can't be created
+	 */
+	public RecordingRF(RFInterface theRF, PrintWriter output, String file, int seed) throws IOException {
+		this.theRF = theRF;
+		this.output = output;
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+		start = System.nanoTime();
+		last = start;
+		lastFlush = start;
+		out.writeInt(MAGIC);
+		out.writeByte(VERSION);
+		out.writeLong(theRF.clock());
+		out.writeInt(seed);
+		out.flush();
+	}
+
+	//Writes a record header; the caller writes any payload while still holding the lock
+	private void record(int type) throws IOException {
+		long now = System.nanoTime();
+		out.writeByte(type);
+		writeVarLong(out, (now - last) / 1000);
+		//Keep the remainder, so rounding doesn't accumulate
+		last += (now - last) / 1000 * 1000;
+		records++;
+	}
+
+	private void flushIfDue() throws IOException {
+		long now = System.nanoTime();
+		if (now - lastFlush > FLUSH_NANOS) {
+			out.flush();
+			lastFlush = now;
+		}
+	}
+
+	private void failed(IOException e) {
+		if (!failed) {
+			failed = true;
+			output.println("RecordingRF: recording stopped: " + e);
+		}
+	}
+
+	@Override
+	public int transmit(byte[] data) {
+		int sent = theRF.transmit(data);
+		synchronized (this) {
+			if (!failed) {
+				try {
+					record(REC_SENT);
+					writeVarLong(out, data.length);
+					flushIfDue();
+				} catch (IOException e) {
+					failed(e);
+				}
+			}
+		}
+		return sent;
+	}
+
+	@Override
+	public byte[] receive() {
+		byte[] frame = theRF.receive();
+		synchronized (this) {
+			if (!failed) {
+				try {
+					record(REC_FRAME);
+					writeVarLong(out, frame.length);
+					out.write(frame);
+					flushIfDue();
+				} catch (IOException e) {
+					failed(e);
+				}
+			}
+		}
+		return frame;
+	}
+
+	@Override
+	public boolean dataWaiting() {
+		return theRF.dataWaiting();
+	}
+
+	@Override
+	public boolean inUse() {
+		boolean inUse = theRF.inUse();
+		synchronized (this) {
+			if (inUse != busy && !failed) {
+				busy = inUse;
+				try {
+					record(inUse ? REC_BUSY : REC_IDLE);
+				} catch (IOException e) {
+					failed(e);
+				}
+			}
+		}
+		return inUse;
+	}
+
+	@Override
+	public long clock() {
+		return theRF.clock();
+	}
+
+	/**
+	 * Flushes and closes the recording.  The RF layer keeps working.
+	 */
+	public synchronized void close() {
+		if (failed) return;
+		try {
+			out.close();
+		} catch (IOException e) {
+			failed(e);
+		}
+		failed = true;
+	}
+
+	/**
+	 * @return how many records have been written
+	 */
+	public synchronized long records() {
+		return records;
+	}
+
+	static void writeVarLong(DataOutputStream out, long v) throws IOException {
+		while ((v & ~0x7FL) != 0) {
+			out.writeByte((int)((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		out.writeByte((int)v);
+	}
+}
@@ -0,0 +1,206 @@
+package wifi;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Plays a file made by {@link RecordingRF} back into a station.  Frames come
+ * out of receive() at the same offsets from the start as they were recorded,
+ * and inUse() reports the carrier sense the recording saw at that moment, so
+ * the same link layer code sees the same input on every run.
+ * <p>
+ * Nothing we transmit goes anywhere.  Transmissions are counted so they can be
+ * compared with what the recorded station sent.  The clock starts where the
+ * recorded station's clock started, and {@link #seed()} gives the seed the
+ * recorded station's backoff used.
+ * <p>
+ * Playback runs on the wall clock, not virtual time.  With the same seed the
+ * station draws the same backoff slots, but its waits (DIFS, slots, ACK
+ * timeouts) are real sleeps.  Thread scheduling can still move a decision to
+ * the other side of a recorded frame or carrier change, so two replays
+ * usually match but aren't guaranteed to.
+ *
+ * @author Braude and Corpron
+ *
+ */
+public class ReplayRF implements RFInterface {
+
+	//Recorded frames and when they arrived, in ns from the start
+	private ArrayList<byte[]> frames = new ArrayList<>();
+	private long[] frameTimes;
+	//Carrier sense changes; busyAt[i] is the state from busyTimes[i] on
+	private long[] busyTimes;
+	private boolean[] busyAt;
+	private long recordedSent = 0;
+	private long recordedSentBytes = 0;
+	private long length;
+	private long startClock;
+	private int seed;
+
+	private long start;
+	private int next = 0;
+	private long sent = 0;
+	private long sentBytes = 0;
+
+	/**
+	 * Loads a recording.  Playback starts now.
+	 * @param file a file written by RecordingRF
+	 * @throws IOException if the file can't be read or isn't a recording
+	 */
+	public ReplayRF(String file) throws IOException {
+		ArrayList<Long> times = new ArrayList<>();
+		ArrayList<Long> changes = new ArrayList<>();
+		ArrayList<Boolean> states = new ArrayList<>();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != RecordingRF.MAGIC) throw new IOException(file + " is not an RF recording");
+			int version = in.readUnsignedByte();
+			if (version != RecordingRF.VERSION) throw new IOException(file + " is recording version " + version);
+			startClock = in.readLong();
+			seed = in.readInt();
+			long time = 0;
+			int type;
+			while ((type = in.read()) != -1) {
+				time += readVarLong(in) * 1000;
+				switch (type) {
+				case RecordingRF.REC_FRAME:
+					byte[] frame = new byte[(int)readVarLong(in)];
+					in.readFully(frame);
+					frames.add(frame);
+					times.add(time);
+					break;
+				case RecordingRF.REC_BUSY:
+				case RecordingRF.REC_IDLE:
+					changes.add(time);
+					states.add(type == RecordingRF.REC_BUSY);
+					break;
+				case RecordingRF.REC_SENT:
+					recordedSentBytes += readVarLong(in);
+					recordedSent++;
+					break;
+				default:
+					throw new IOException(file + " has an unknown record type " + type);
+				}
+			}
+			length = time;
+		} catch (EOFException e) {
+			throw new IOException(file + " is truncated");
+		}
+
+		frameTimes = new long[times.size()];
+		for (int i = 0; i < frameTimes.length; i++) frameTimes[i] = times.get(i);
+		busyTimes = new long[changes.size()];
+		busyAt = new boolean[changes.size()];
+		for (int i = 0; i < busyTimes.length; i++) {
+			busyTimes[i] = changes.get(i);
+			busyAt[i] = states.get(i);
+		}
+		start = System.nanoTime();
+	}
+
+	private long elapsed() {
+		return System.nanoTime() - start;
+	}
+
+	@Override
+	public synchronized int transmit(byte[] data) {
+		sent++;
+		sentBytes += data.length;
+		return data.length;
+	}
+
+	/**
+	 * Blocks until the next recorded frame is due.  Once the recording runs
+	 * out, blocks forever, as the real RF layer does on a quiet channel.
+	 */
+	@Override
+	public byte[] receive() {
+		int i;
+		synchronized (this) {
+			i = next++;
+		}
+		long due = i < frameTimes.length ? frameTimes[i] : Long.MAX_VALUE;
+		long wait;
+		while ((wait = due - elapsed()) > 0) {
+			try {
+				Thread.sleep(Math.min(wait / 1000000 + 1, 1000));
+			} catch (InterruptedException e) {
+				//Keep waiting
+			}
+		}
+		return frames.get(i).clone();
+	}
+
+	@Override
+	public synchronized boolean dataWaiting() {
+		return next < frameTimes.length && frameTimes[next] <= elapsed();
+	}
+
+	@Override
+	public boolean inUse() {
+		long now = elapsed();
+		//Last change at or before now
+		int lo = 0, hi = busyTimes.length - 1, found = -1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (busyTimes[mid] <= now) {
+				found = mid;
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return found >= 0 && busyAt[found];
+	}
+
+	@Override
+	public long clock() {
+		return startClock + elapsed() / 1000000;
+	}
+
+	/**
+	 * @return the seed the recorded station's backoff used
+	 */
+	public int seed() {
+		return seed;
+	}
+
+	/**
+	 * @return how long the recording runs, in ms
+	 */
+	public long length() {
+		return length / 1000000;
+	}
+
+	/**
+	 * @return true once every recorded frame has been handed out
+	 */
+	public synchronized boolean finished() {
+		return next >= frameTimes.length && elapsed() >= length;
+	}
+
+	/**
+	 * Prints how far playback has got, and how our transmissions compare with
+	 * the recorded station's.
+	 */
+	public synchronized void printStats(PrintWriter output) {
+		output.println("Replay: " + Math.min(next, frameTimes.length) + " of " + frameTimes.length + " frames played, "
+				+ busyTimes.length + " carrier changes, " + (elapsed() / 1000000) + " of " + length() + " ms");
+		output.println("Replay: sent " + sent + " frames (" + sentBytes + " bytes), recording sent "
+				+ recordedSent + " frames (" + recordedSentBytes + " bytes)");
+	}
+
+	static long readVarLong(DataInputStream in) throws IOException {
+		long v = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.readUnsignedByte();
+			v |= (long)(b & 0x7F) << shift;
+			if ((b & 0x80) == 0) return v;
+		}
+		throw new IOException("bad length in recording");
+	}
+}
@@ -1,9 +1,10 @@
 package wifi;
-import rf.RF;
 import java.io.PrintWriter;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Random;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -15,17 +16,28 @@ import java.util.concurrent.TimeUnit;
  */
 public class Sender implements Runnable {
 
-	private RF theRF;
+	private RFInterface theRF;
+	private ClockDiscipline clock;
 	private short ourMAC;
 	private PrintWriter output;
 	private ArrayBlockingQueue<Packet> toSend;
 	private ArrayBlockingQueue<Packet> ackQueue;
+	private ArrayBlockingQueue<Packet> ctsQueue;
+	private NetworkAllocationVector nav;
+	private MediumMonitor monitor;
+	private ReceiveWindows windows;
+	private MeshRouter router;
+	private AckLane ackLane;
+	private volatile StreamHandler streams;
 
     // DIFS is defined as the SIFS time + 2*SlotTime
-	private static int DIFS = RF.aSIFSTime + 2*RF.aSlotTime;
+	private static int DIFS = RFInterface.aSIFSTime + 2*RFInterface.aSlotTime;
 	
 	//Measured with Win10/2.5Ghz i5/8GB RAM
-	private static final int ACKTIME = 1190;
+	static final int ACKTIME = 1190;
+	//How long to hold a frame for a station that says it's full before sending it anyway
+	private static final int PERSIST_TIME = 2000;
+	//Starting guess at how long a beacon takes to go out.  Replaced by measurements.
 	private static final int BEACONTIME = 1820;
 	
 	//absolute time of the next beacon, in ms
@@ -34,19 +46,63 @@ public class Sender implements Runnable {
 	//used internally to calculate debug statistics
 	private long btotal = 0;
 	private long bnum = 0;
-	private float bvg=0;
+	private float bvg=BEACONTIME;
 	private long atotal = 0;
 	private long anum = 0;
 	private float aavg=0;
+	
+	//least-squares fit of transmit time (ms) against frame length (bytes)
+	private long txn = 0;
+	private double txsx = 0;
+	private double txsy = 0;
+	private double txsxx = 0;
+	private double txsxy = 0;
+	
+	//RTS/CTS accounting
+	private long rtsSent = 0;
+	private long ctsReceived = 0;
+	private long rtsCollisions = 0;
+	private long airtimeSaved = 0;
+	
+	//per-destination delivery statistics
+	private HashMap<Short, PeerStats> peers = new HashMap<>();
+	
+	//NAV accounting
+	private long navDeferrals = 0;
+	private long navDeferTime = 0;
+	
+	//flow control accounting
+	private long windowPauses = 0;
+	private long windowWaitTime = 0;
+	
+	private CopyOnWriteArrayList<TxListener> txListeners = new CopyOnWriteArrayList<>();
+	
+	//Backoff slots are drawn from here; seedBackoff() makes the draws repeatable
+	private Random rng = new Random();
+	
+	//data frame totals, written only by this thread and read by stats()
+	private volatile long txFrames = 0;
+	private volatile long txBytes = 0;
+	private volatile long txFailed = 0;
+	private volatile long txAttempts = 0;
+	//stats() copies this every 500 ms or so, too rarely to hold up record() in practice
+	private final LatencyHistogram txLatency = new LatencyHistogram();
 
 	
-	public Sender(RF theRF, short ourMAC, PrintWriter output, ArrayBlockingQueue<Packet> toSend,ArrayBlockingQueue<Packet> ackQueue) {
+	public Sender(RFInterface theRF, ClockDiscipline clock, short ourMAC, PrintWriter output, ArrayBlockingQueue<Packet> toSend,ArrayBlockingQueue<Packet> ackQueue, ArrayBlockingQueue<Packet> ctsQueue, NetworkAllocationVector nav, MediumMonitor monitor, ReceiveWindows windows, MeshRouter router, AckLane ackLane) {
 		this.theRF = theRF;
+		this.clock = clock;
 		this.ourMAC = ourMAC;
 		this.output = output;
 		this.toSend = toSend;
 		this.ackQueue = ackQueue;
-		nextBeacon = LinkLayer.getTime(theRF) + LinkLayer.beaconInterval();
+		this.ctsQueue = ctsQueue;
+		this.nav = nav;
+		this.monitor = monitor;
+		this.windows = windows;
+		this.router = router;
+		this.ackLane = ackLane;
+		nextBeacon = clock.now() + LinkLayer.beaconInterval();
 	}
 	
 	@Override
@@ -64,31 +120,42 @@ public class Sender implements Runnable {
                     continue;
                 }
             } else {
-            	if (LinkLayer.getTime(theRF)>nextBeacon) {
-                	long t = LinkLayer.getTime(theRF)+BEACONTIME;
-                	packet = Packet.makeBeacon(ourMAC, t);
+            	if (clock.now()>nextBeacon) {
+                	packet = beacon();
                 } else {
                 	try {
-                        packet = toSend.poll(nextBeacon-LinkLayer.getTime(theRF),TimeUnit.MILLISECONDS);
+                        packet = toSend.poll(nextBeacon-clock.now(),TimeUnit.MILLISECONDS);
                     } catch (Exception e) {
                         if (LinkLayer.debugLevel() > 0) output.println("Sender: error while retrieving packet");
                         continue;
                     }
                 	if (packet == null) {
-                		long t = LinkLayer.getTime(theRF)+BEACONTIME;
-                    	packet = Packet.makeBeacon(ourMAC, t);
+                    	packet = beacon();
                 	}
                 }
             }
             if (packet.getType() == Packet.FT_BEACON) {
-            	while (nextBeacon < LinkLayer.getTime(theRF) && LinkLayer.beaconInterval() >0) {
+            	//Always move on at least one interval, or a poll that times out in the
+            	//same ms as nextBeacon sends a second beacon straight after this one
+            	do {
             		nextBeacon+=LinkLayer.beaconInterval();
-            	}
+            	} while (nextBeacon < clock.now() && LinkLayer.beaconInterval() >0);
+            }
+
+            // Don't waste retries on a station that has told us it has no room
+            if ((packet.getType() == Packet.FT_DATA || packet.getType() == Packet.FT_MESH) && !Packet.isGroup(packet.getDest())) {
+                waitForWindow(packet.getDest());
             }
 
             // resets on new packet to send
             int expCounter = 0;
             int sendCount = 0;
+            PeerStats peer = peerFor(packet);
+            int retryLimit = RFInterface.dot11RetryLimit;
+            if (peer != null && LinkLayer.adaptiveRetry()) {
+                retryLimit = peer.retryLimit();
+                if (LinkLayer.debugLevel() == 3) output.println("Sender: Retry limit for " + packet.getDest() + " is " + retryLimit);
+            }
 
             boolean sent = false;
             // If a packet sent doesn't receive an ack, always go down right side of chart
@@ -96,9 +163,11 @@ public class Sender implements Runnable {
             // Inner while loop in case need to resend current packet of data
             if (LinkLayer.debugLevel() == 3 && packet.getType()!=Packet.FT_BEACON) output.println("Sender: Sending Packet");
             while (!sent) {
-                if (sendCount > RF.dot11RetryLimit) {
+                if (sendCount > retryLimit) {
                     if (LinkLayer.debugLevel() == 3&& packet.getType()!=Packet.FT_BEACON) output.print("Sender: Packet reached send attempt limit");
                     LinkLayer.setStatus(LinkLayer.STATUS_TX_FAILED);
+                    if (peer != null) peer.dropped();
+                    reportTx(packet, false, sendCount);
                     break;
                 }
                 if (LinkLayer.debugLevel() == 3 && packet.getType()!=Packet.FT_BEACON) output.println("Sender: Sending Packet attempt #"+sendCount);
@@ -123,94 +192,186 @@ public class Sender implements Runnable {
                 // If packet hasn't been sent, go through exponential backoff wait time and send the packet
                 if (!jumpToSend) {
                     if (LinkLayer.debugLevel() == 3 && packet.getType()!=Packet.FT_BEACON) output.println("Sender: Starting Exponential Backoff");
-                    int slotsToWait = calculateSlots(expCounter);
+                    int stage = expCounter;
+                    if (peer != null && LinkLayer.adaptiveRetry()) stage = peer.backoffStage(expCounter);
+                    int slotsToWait = calculateSlots(stage);
                     expBackoff(slotsToWait);
                 }
 
+                // Large frames reserve the medium first, so a collision only costs us the RTS
+                if (useRTS(packet)) {
+                    if (!reserveMedium(packet)) {
+                        if (LinkLayer.debugLevel() == 3) output.println("Sender: Didn't receive CTS, resending RTS");
+                        if (peer != null) peer.attemptFailed();
+                        expCounter ++;
+                        sendCount ++;
+                        canSkip = false;
+                        continue;
+                    }
+                    sleepRounded(RFInterface.aSIFSTime);
+                }
+
                 // Done waiting for exponential backoff, or is able to send early, so send data.
                 if (LinkLayer.debugLevel() == 3 && packet.getType()!=Packet.FT_BEACON) output.println("Sender: Sending Data");
-                long st=LinkLayer.getTime(theRF);
+                long st=clock.now();
                 if (packet.getType() == Packet.FT_BEACON) {
                 	//Per Brad's instructions, rebuild the packet right before sending
-                	packet = Packet.makeBeacon(ourMAC, LinkLayer.getTime(theRF)+BEACONTIME);
+                	packet = beacon();
                 }
                 
-                theRF.transmit(packet.getPacket());
+                transmit(packet);
                 
                 if (packet.getType() == Packet.FT_BEACON) {
+            		//Keep track of how long beacons take, so the next timestamp allows for it
+            		long ed = clock.now();
+            		bnum++;
+            		btotal += ed-st;
+            		bvg = btotal/(float)bnum;
             		if (LinkLayer.debugLevel() == 5) {
             			output.println("Sent beacon with time " +packet.getBeaconTime());
-            			long ed = LinkLayer.getTime(theRF);
-            			bnum++;
-            			btotal += ed-st;
-            			bvg = btotal/(float)bnum;
             			output.println("Took " + (ed-st) + " ms to send.");
             			output.println("Average send time for all beacons: " +bvg + " ms.");
             		}
                 }
 
                 // now need to wait for an ack to appear in the ack queue
-                if (LinkLayer.debugLevel() == 3 && packet.getDest()!=-1) output.println("Sender: Waiting for ACK");
+                if (LinkLayer.debugLevel() == 3 && !Packet.isGroup(packet.getDest())) output.println("Sender: Waiting for ACK");
                 boolean gotACK = waitForACK(packet);
 
                 // Either move on to next packet, or remain on current
                 // If we got the wrong ack, increment exp and make sure packet has resent bit
                 if (!gotACK) {
                     if (LinkLayer.debugLevel() == 3) output.println("Sender: Didn't receive ack, resending");
+                    if (peer != null) peer.attemptFailed();
                     if (!packet.getRetry()) {
+                        long queued = packet.getQueued();
                         packet = new Packet(packet.getSrc(), packet.getDest(), packet.getData(), packet.getType(), packet.getSeq(), true);
+                        packet.setQueued(queued);
                     }
                     expCounter ++;
                     sendCount ++;
                     canSkip = false;
                 } else {
                     // If it is the correct ack, move on to the next packet.
-                    if (LinkLayer.debugLevel() == 3 && packet.getDest()!=-1) output.print("Sender: Received ACK, moving onto next packet");
-                    if (LinkLayer.debugLevel() == 3 && packet.getDest()==-1 && packet.getType()!=Packet.FT_BEACON) output.print("Sender: Broadcast packet sent, moving to next");
+                    if (LinkLayer.debugLevel() == 3 && !Packet.isGroup(packet.getDest())) output.print("Sender: Received ACK, moving onto next packet");
+                    if (LinkLayer.debugLevel() == 3 && Packet.isGroup(packet.getDest()) && packet.getType()!=Packet.FT_BEACON) output.print("Sender: Broadcast packet sent, moving to next");
                     LinkLayer.setStatus(LinkLayer.STATUS_TX_DELIVERED);
+                    if (peer != null) peer.delivered();
+                    reportTx(packet, true, sendCount+1);
                     sent = true;
                 }
             }
         }
 	}
 
+	/**
+	 * @param handler who's told how stream frames turn out, or null
+	 */
+	public void setStreamHandler(StreamHandler handler) {
+		streams = handler;
+	}
+
+	public void addTxListener(TxListener listener) {
+		txListeners.add(listener);
+	}
+	
+	public void removeTxListener(TxListener listener) {
+		txListeners.remove(listener);
+	}
+	
+	//Counts a finished data frame and tells the listeners how it turned out.  Mesh frames
+	//we started count as far as the first hop; frames we relay for others don't count.
+	private void reportTx(Packet packet, boolean delivered, int attempts) {
+		short dest;
+		int length;
+		if (packet.getType() == Packet.FT_STREAM) {
+			//Stream frames are the stream's business, and don't count as data
+			StreamHandler handler = streams;
+			if (handler != null) handler.segmentSent(packet.getDest(), packet.getData(), delivered);
+			return;
+		} else if (packet.getType() == Packet.FT_DATA) {
+			dest = packet.getDest();
+			length = packet.getData().length;
+		} else if (packet.getType() == Packet.FT_MESH && packet.getMeshSrc() == ourMAC) {
+			dest = packet.getMeshDest();
+			length = packet.getData().length - Packet.MESH_HEADER;
+		} else {
+			return;
+		}
+		long latency = System.nanoTime() - packet.getQueued();
+		txAttempts += attempts;
+		if (delivered) {
+			txFrames++;
+			txBytes += length;
+			txLatency.record(latency);
+		} else {
+			txFailed++;
+		}
+		if (txListeners.isEmpty()) return;
+		for (TxListener listener : txListeners) {
+			try {
+				listener.txCompleted(dest, length, delivered, attempts, latency);
+			} catch (RuntimeException e) {
+				if (LinkLayer.debugLevel() > 0) output.println("Sender: tx listener threw " + e);
+			}
+		}
+	}
+
+	/**
+	 * Restarts the backoff random numbers from a seed, so a replayed run picks
+	 * the same slots as the recorded one.
+	 * @param seed the seed
+	 */
+	public void seedBackoff(long seed) {
+		rng.setSeed(seed);
+	}
+
+	/**
+	 * Totals for the data frames we've finished with, for {@link LinkStats}.
+	 * @return frames delivered, bytes delivered, frames dropped, and transmissions
+	 */
+	public long[] txTotals() {
+		return new long[] {txFrames, txBytes, txFailed, txAttempts};
+	}
+	
+	/**
+	 * @return a copy of the send-to-ACK latencies of every frame delivered so far
+	 */
+	public LatencyHistogram txLatency() {
+		return txLatency.copy();
+	}
+
 	// Goes through left half of diagram
 	private boolean leftHalf() {
         // Check if medium is idle
-        boolean inUse = theRF.inUse();
-
-        // Check if the medium is initially idle
-        boolean firstTry = !inUse;
+        if (mediumBusy()) {
+            //Move to right half of diagram
+            return false;
+        }
 
-        // if the medium is immediately idle, wait DIFS
-        if (firstTry) {
-            sleepRounded(DIFS);
+        // If the medium has already been idle for DIFS, there's nothing to wait for
+        long idle = monitor.idleFor();
+        if (idle >= DIFS) return true;
 
-            // If medium is idle again, skip to sending the data, else go through right side
-            inUse = theRF.inUse();
-            return !inUse;
-        }
+        // Otherwise wait out the rest of DIFS
+        sleepRounded(DIFS - idle);
 
-        //Else move to right half of diagram
-        return false;
+        // If medium is idle again, skip to sending the data, else go through right side
+        return !mediumBusy();
     }
 
     private void rightDIFSWait() {
-	    //If we are in here, then the medium is in use
-        boolean inUse = true;
-        while (inUse) {
-            // If medium was busy first try, or after the second check, wait for medium to not be idle
-            while (inUse) {
-                // If medium not idle, wait sifs and a slot time as specified
-                sleepRounded(RF.aSIFSTime+RF.aSlotTime);
-
-                inUse = theRF.inUse();
+        // Wait until the medium has been idle for a full DIFS
+        while (true) {
+            if (mediumBusy()) {
+                // If medium not idle, wait sifs and a slot time as specified,
+                // or sleep through the whole reservation if somebody made one
+                if (!deferToNAV()) sleepRounded(RFInterface.aSIFSTime+RFInterface.aSlotTime);
+                continue;
             }
-
-            sleepRounded(DIFS);
-
-            // Then check if the thread is in use. If it is, reset back. If not, skip to send.
-            inUse = theRF.inUse();
+            long idle = monitor.idleFor();
+            if (idle >= DIFS) return;
+            sleepRounded(DIFS - idle);
         }
     }
 
@@ -221,14 +382,12 @@ public class Sender implements Runnable {
         // base = log(aCWmin + 1)
         // and (2^(base+0))-1 = aCWmin
         // Wait time can be zero
-        int base = (int) (Math.log(RF.aCWmin + 1) / Math.log(2));
+        int base = (int) (Math.log(RFInterface.aCWmin + 1) / Math.log(2));
         int totalSlots = (int) Math.pow(2, base+expCounter)-1;
 
         // If the exponential backoff is too large, use the max value
-        if (totalSlots > RF.aCWmax) totalSlots = RF.aCWmax;
+        if (totalSlots > RFInterface.aCWmax) totalSlots = RFInterface.aCWmax;
 
-        Random rng = new Random();
-        
         int toReturn = 0;
         if (LinkLayer.slotSelection() == LinkLayer.SS_RANDOM) {
             // The plus one makes the range of slots [1, totalSlots+1], so
@@ -247,26 +406,184 @@ public class Sender implements Runnable {
         // Decrement by a slot time, then check if medium is still idle, if not, wait until it is
         while (slotsToWait != 0) {
             // If the medium is idle, wait for a slot, and count down
-            if (!theRF.inUse()) {
-                sleepRounded(RF.aSlotTime);
+            if (!mediumBusy()) {
+                sleepRounded(RFInterface.aSlotTime);
                 slotsToWait --;
             }
             // If the medium is not idle, wait for it to be idle
-            else {
+            else if (!deferToNAV()) {
                 // Wait for medium to be idle again
-                sleepRounded(RF.aSIFSTime+RF.aSlotTime);
+                sleepRounded(RFInterface.aSIFSTime+RFInterface.aSlotTime);
             }
         }
     }
 
+    // How far ahead to stamp a beacon so the time is right when it's received
+    private long beaconDelay() {
+        return Math.round(bvg);
+    }
+
+    // Builds a beacon stamped for when it will arrive, carrying our routes if the mesh is on
+    private Packet beacon() {
+        byte[] routes = LinkLayer.meshForwarding() ? router.advertisement(clock.now()) : null;
+        return Packet.makeBeacon(ourMAC, clock.now()+beaconDelay(), routes);
+    }
+
+    // Finds the statistics for a packet's destination, or null if it isn't unicast
+    private PeerStats peerFor(Packet packet) {
+        if (Packet.isGroup(packet.getDest()) || packet.getType() == Packet.FT_ACK) return null;
+        synchronized (peers) {
+            PeerStats peer = peers.get(packet.getDest());
+            if (peer == null) {
+                peer = new PeerStats(packet.getDest());
+                peers.put(packet.getDest(), peer);
+            }
+            return peer;
+        }
+    }
+
+    // Holds off until the destination reopens its receive window, or until we've
+    // waited long enough that it's worth sending the frame anyway as a probe
+    private void waitForWindow(short dest) {
+        if (windows.open(dest)) return;
+        if (LinkLayer.debugLevel() == 3) output.println("Sender: " + dest + " has no room, pausing");
+        long start = clock.now();
+        boolean opened = false;
+        try {
+            opened = windows.awaitOpen(dest, PERSIST_TIME);
+        } catch (InterruptedException e) {
+            LinkLayer.setStatus(LinkLayer.STATUS_UNSPECIFIED_ERROR);
+        }
+        windowPauses++;
+        windowWaitTime += clock.now() - start;
+        if (LinkLayer.debugLevel() == 3 && !opened) output.println("Sender: " + dest + " still full, probing");
+    }
+
+    // The medium is busy if we can hear it, or if somebody has reserved it
+    // Our own ACKs and CTSs go out SIFS after what they answer, so they have the medium before we do
+    private boolean mediumBusy() {
+        return monitor.busy() || nav.busy(clock.now()) || ackLane.owing();
+    }
+
+    // Sleeps through any reservation we've overheard instead of polling the RF layer.
+    // Returns true if we had to wait.
+    private boolean deferToNAV() {
+        long start = clock.now();
+        long now = start;
+        while (nav.busy(now)) {
+            sleepRounded(nav.expiry() - now);
+            now = clock.now();
+        }
+        if (now == start) return false;
+        navDeferrals++;
+        navDeferTime += now - start;
+        if (LinkLayer.debugLevel() == 3) output.println("Sender: Deferred " + (now-start) + " ms to NAV");
+        return true;
+    }
+
+    // RTS/CTS is only worth it for unicast data above the configured threshold
+    private boolean useRTS(Packet packet) {
+        int threshold = LinkLayer.rtsThreshold();
+        if (threshold < 0 || Packet.isGroup(packet.getDest())) return false;
+        if (packet.getType() != Packet.FT_DATA && packet.getType() != Packet.FT_MESH && packet.getType() != Packet.FT_STREAM) return false;
+        return packet.getData().length > threshold;
+    }
+
+    // Sends an RTS for the packet and waits for the matching CTS
+    private boolean reserveMedium(Packet packet) {
+        // CTS + SIFS + data + ACK, with the control responses costing about an ACK wait each
+        long duration = ACKTIME + RFInterface.aSIFSTime + txTime(packet.getPacket().length) + ACKTIME;
+        Packet rts = Packet.makeRTS(ourMAC, packet.getDest(), duration);
+        if (LinkLayer.debugLevel() == 3) output.println("Sender: Sending RTS reserving " + duration + " ms");
+        ctsQueue.clear();
+        transmit(rts);
+        rtsSent++;
+
+        boolean gotCTS = waitForCTS(rts);
+        if (gotCTS) {
+            ctsReceived++;
+        } else {
+            // We lost the RTS instead of the whole frame
+            rtsCollisions++;
+            airtimeSaved += Math.max(0, txTime(packet.getPacket().length) - txTime(rts.getPacket().length));
+        }
+        return gotCTS;
+    }
+
+    private boolean waitForCTS(Packet rts) {
+        long deadline = clock.now() + RFInterface.aSlotTime + RFInterface.aSIFSTime + ACKTIME;
+        long waitTime = deadline - clock.now();
+        while (waitTime > 0) {
+            Packet cts;
+            try {
+                cts = ctsQueue.poll(waitTime, TimeUnit.MILLISECONDS);
+            } catch (Exception e) {
+                if (LinkLayer.debugLevel() > 0) output.println("Sender: Error in waiting for CTS");
+                LinkLayer.setStatus(LinkLayer.STATUS_UNSPECIFIED_ERROR);
+                return false;
+            }
+            if (cts == null) return false;
+            if (cts.getSrc() == rts.getDest()) return true;
+            waitTime = deadline - clock.now();
+        }
+        return false;
+    }
+
+    // Transmits a frame, feeding how long it took into the airtime estimate
+    private void transmit(Packet packet) {
+        long st = clock.now();
+        theRF.transmit(packet.getPacket());
+        long ms = clock.now() - st;
+        int len = packet.getPacket().length;
+        txn++;
+        txsx += len;
+        txsy += ms;
+        txsxx += (double)len*len;
+        txsxy += (double)len*ms;
+    }
+
+    // Estimated time (ms) to put a frame of the given length on the air
+    private long txTime(int len) {
+        if (txn == 0) return 0;
+        double denom = txn*txsxx - txsx*txsx;
+        if (txn < 2 || denom == 0) return Math.round(txsy/txn);
+        double slope = (txn*txsxy - txsx*txsy)/denom;
+        double intercept = (txsy - slope*txsx)/txn;
+        return Math.max(0, Math.round(intercept + slope*len));
+    }
+
+    /**
+     * Prints sender statistics to the output stream
+     */
+    public void printStats() {
+        clock.printStats(output);
+        output.println("RTS sent: " + rtsSent + ", CTS received: " + ctsReceived);
+        output.println("RTS collisions: " + rtsCollisions + ", airtime saved: " + airtimeSaved + " ms");
+        long now = clock.now();
+        output.println("Channel busy: " + percent(monitor.busyRatio(now, 1)) + " (1s), "
+                + percent(monitor.busyRatio(now, 10)) + " (10s), " + percent(monitor.busyRatio(now, 60)) + " (60s)");
+        output.println("NAV updates: " + nav.updates() + ", deferrals: " + navDeferrals + ", time deferred: " + navDeferTime + " ms");
+        output.println("Paused for full receivers: " + windowPauses + " times, " + windowWaitTime + " ms");
+        synchronized (peers) {
+            for (PeerStats peer : peers.values()) {
+                output.println(peer);
+            }
+        }
+    }
+
+    private String percent(double ratio) {
+        return Math.round(ratio*1000)/10.0 + "%";
+    }
+
     private boolean waitForACK(Packet packet) {
-	    if (packet.getDest() == -1) return true;
+	    //Nobody acknowledges group frames, or the window updates we send as ACKs
+	    if (Packet.isGroup(packet.getDest()) || packet.getType() == Packet.FT_ACK) return true;
 
-        int waitTime = RF.aSlotTime + RF.aSIFSTime + ACKTIME;
+        int waitTime = RFInterface.aSlotTime + RFInterface.aSIFSTime + ACKTIME;
         Packet ack;
         // wait for ack for the timeout time
         while (waitTime > 0) {
-            long start = LinkLayer.getTime(theRF);
+            long start = clock.now();
             try {
                 ack = ackQueue.poll(waitTime, TimeUnit.MILLISECONDS);
             } catch (Exception e) {
@@ -281,15 +598,15 @@ public class Sender implements Runnable {
             if (ack == null) {
                 return false;
             }
-            long end = LinkLayer.getTime(theRF);
+            long end = clock.now();
             
             atotal += end-start;
             anum++;
             aavg = atotal/(float)anum;
             if (LinkLayer.debugLevel() == 3) output.println("Average ACK wait time: " + aavg + ".");
 
-            // If we received the correct ACK return true.
-            if (ack.getSeq() == packet.getSeq()) {
+            // If we received the correct ACK, from the station we sent to, return true.
+            if (ack.getSeq() == packet.getSeq() && ack.getSrc() == packet.getDest()) {
                 return true;
             }
 
@@ -311,7 +628,7 @@ public class Sender implements Runnable {
     }
     
     private void sleepRounded(long waitTime) {
-    	long t = LinkLayer.getTime(theRF);
+    	long t = clock.now();
     	long endTime = roundToFifty(t + waitTime);
     	try {
     		Thread.sleep(endTime-t);
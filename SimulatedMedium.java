@@ -0,0 +1,293 @@
+package wifi;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * An in-memory stand-in for the air, shared by any number of {@link SimulatedRF}
+ * stations in one JVM.  Transmissions take time in proportion to their length,
+ * reach other stations after a propagation delay, and are lost at a receiver if
+ * anything else it can hear overlaps them (or if it was transmitting itself).
+ * Frames can also be dropped or corrupted at random, and stations can be kept
+ * out of each other's range to set up hidden nodes.
+ * <p>
+ * Timing runs on the real clock, since the link layer sleeps on it.  A seed can
+ * be given so loss and corruption are repeatable.
+ *
+ * @author Braude and Corpron
+ *
+ */
+public class SimulatedMedium implements Runnable {
+
+	//How long transmissions are remembered after they end, for spotting overlaps
+	private static final long HISTORY_NANOS = 1000000000L;
+
+	/**
+	 * One transmission on the air.  Times are System.nanoTime() at the sender.
+	 */
+	private static class Signal implements Comparable<Signal> {
+		SimulatedRF from;
+		byte[] frame;
+		long start;
+		long end;
+
+		Signal(SimulatedRF from, byte[] frame, long start, long end) {
+			this.from = from;
+			this.frame = frame;
+			this.start = start;
+			this.end = end;
+		}
+
+		public int compareTo(Signal other) {
+			return Long.compare(end, other.end);
+		}
+	}
+
+	private ArrayList<SimulatedRF> stations = new ArrayList<>();
+	//Pairs of stations whose range differs from the default, keyed by pairKey()
+	private HashMap<Long, Boolean> links = new HashMap<>();
+	private boolean connectedByDefault = true;
+
+	private ArrayList<Signal> recent = new ArrayList<>();
+	private PriorityQueue<Signal> pending = new PriorityQueue<>();
+	private Random rand;
+
+	private long nanosPerByte = 8000;     //1 Mbit/s
+	private long preambleNanos = 1000000; //1 ms
+	private long propagationNanos = 0;
+	private double lossRate = 0;
+	private double corruptionRate = 0;
+
+	private long transmissions = 0;
+	private long delivered = 0;
+	private long collisions = 0;
+	private long lost = 0;
+	private long corrupted = 0;
+
+	/**
+	 * Creates a medium with a random seed.
+	 */
+	public SimulatedMedium() {
+		this(new Random().nextLong());
+	}
+
+	/**
+	 * Creates a medium whose losses and corruption are repeatable.
+	 * @param seed seed for the random number generator
+	 */
+	public SimulatedMedium(long seed) {
+		rand = new Random(seed);
+		Thread deliverer = new Thread(this, "SimulatedMedium");
+		deliverer.setDaemon(true);
+		deliverer.start();
+	}
+
+	/**
+	 * Adds a station to the medium.
+	 * @return the new station's RF layer
+	 */
+	public synchronized SimulatedRF attach() {
+		SimulatedRF rf = new SimulatedRF(this, stations.size());
+		stations.add(rf);
+		return rf;
+	}
+
+	/**
+	 * Sets the data rate.
+	 * @param bitsPerSecond how fast frames go out
+	 */
+	public synchronized void setBitRate(long bitsPerSecond) {
+		nanosPerByte = 8000000000L / bitsPerSecond;
+	}
+
+	/**
+	 * @param ms how long every transmission takes before the first byte, in ms
+	 */
+	public synchronized void setPreamble(double ms) {
+		preambleNanos = (long)(ms * 1000000);
+	}
+
+	/**
+	 * @param ms how long a signal takes to reach other stations, in ms
+	 */
+	public synchronized void setPropagationDelay(double ms) {
+		propagationNanos = (long)(ms * 1000000);
+	}
+
+	/**
+	 * @param rate chance that a receiver misses a frame it would otherwise have heard
+	 */
+	public synchronized void setLossRate(double rate) {
+		lossRate = rate;
+	}
+
+	/**
+	 * @param rate chance that a frame arrives with a damaged byte, so its CRC fails
+	 */
+	public synchronized void setCorruptionRate(double rate) {
+		corruptionRate = rate;
+	}
+
+	/**
+	 * Puts two stations in or out of each other's range.
+	 * @param a one station
+	 * @param b the other
+	 * @param inRange true if they can hear each other
+	 */
+	public synchronized void setInRange(SimulatedRF a, SimulatedRF b, boolean inRange) {
+		links.put(pairKey(a, b), inRange);
+	}
+
+	/**
+	 * Sets whether stations are in range of each other unless told otherwise by
+	 * setInRange().  Turning this off makes it easy to build chains and other
+	 * sparse topologies.
+	 * @param connected true if every station hears every other by default
+	 */
+	public synchronized void setConnectedByDefault(boolean connected) {
+		connectedByDefault = connected;
+	}
+
+	/**
+	 * @return true if the two stations can hear each other
+	 */
+	public synchronized boolean inRange(SimulatedRF a, SimulatedRF b) {
+		if (a == b) return true;
+		Boolean link = links.get(pairKey(a, b));
+		return link == null ? connectedByDefault : link;
+	}
+
+	private static long pairKey(SimulatedRF a, SimulatedRF b) {
+		long lo = Math.min(a.id(), b.id());
+		long hi = Math.max(a.id(), b.id());
+		return (hi << 32) | lo;
+	}
+
+	/**
+	 * Puts a frame on the air and blocks until it's been sent.
+	 * @param from the sending station
+	 * @param frame the frame
+	 */
+	void transmit(SimulatedRF from, byte[] frame) {
+		Signal s;
+		synchronized (this) {
+			long start = System.nanoTime();
+			s = new Signal(from, frame.clone(), start, start + preambleNanos + frame.length * nanosPerByte);
+			recent.add(s);
+			pending.add(s);
+			transmissions++;
+			notifyAll();
+		}
+		sleepUntil(s.end);
+	}
+
+	/**
+	 * @return true if the station can hear a transmission right now, its own included
+	 */
+	synchronized boolean inUse(SimulatedRF at) {
+		long now = System.nanoTime();
+		for (Signal s : recent) {
+			long delay = s.from == at ? 0 : propagationNanos;
+			if (s.start + delay <= now && now < s.end + delay && inRange(s.from, at)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Delivers each transmission once it has fully arrived everywhere.
+	 */
+	@Override
+	public void run() {
+		while (true) {
+			Signal s;
+			synchronized (this) {
+				try {
+					while (pending.isEmpty() || pending.peek().end + propagationNanos > System.nanoTime()) {
+						if (pending.isEmpty()) {
+							wait();
+						} else {
+							long wait = pending.peek().end + propagationNanos - System.nanoTime();
+							if (wait > 0) wait(wait / 1000000, (int)(wait % 1000000));
+						}
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+				s = pending.poll();
+				for (SimulatedRF to : stations) {
+					if (to == s.from || !inRange(s.from, to)) continue;
+					byte[] frame = outcome(s, to);
+					if (frame != null) {
+						delivered++;
+						to.deliver(frame);
+					}
+				}
+				prune();
+			}
+		}
+	}
+
+	//What a station receives of a signal: the frame, a damaged copy, or null
+	private byte[] outcome(Signal s, SimulatedRF to) {
+		long arriveStart = s.start + propagationNanos;
+		long arriveEnd = s.end + propagationNanos;
+		for (Signal other : recent) {
+			if (other == s) continue;
+			long delay = other.from == to ? 0 : propagationNanos;
+			if (other.start + delay < arriveEnd && other.end + delay > arriveStart && inRange(other.from, to)) {
+				collisions++;
+				return null;
+			}
+		}
+		if (lossRate > 0 && rand.nextDouble() < lossRate) {
+			lost++;
+			return null;
+		}
+		byte[] frame = s.frame.clone();
+		if (corruptionRate > 0 && rand.nextDouble() < corruptionRate && frame.length > 0) {
+			corrupted++;
+			frame[rand.nextInt(frame.length)] ^= (byte)(1 + rand.nextInt(255));
+		}
+		return frame;
+	}
+
+	//Forgets transmissions too old to overlap anything still pending
+	private void prune() {
+		long cutoff = System.nanoTime() - propagationNanos - HISTORY_NANOS;
+		Iterator<Signal> it = recent.iterator();
+		while (it.hasNext()) {
+			if (it.next().end < cutoff) it.remove();
+		}
+	}
+
+	private static void sleepUntil(long deadline) {
+		long wait;
+		while ((wait = deadline - System.nanoTime()) > 0) {
+			try {
+				Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+			} catch (InterruptedException e) {
+				//Keep transmitting
+			}
+		}
+	}
+
+	/**
+	 * @return transmissions, frames delivered, frames lost to collisions, lost at random, and corrupted
+	 */
+	public synchronized long[] totals() {
+		return new long[] {transmissions, delivered, collisions, lost, corrupted};
+	}
+
+	/**
+	 * Prints medium statistics to the given stream
+	 */
+	public synchronized void printStats(PrintWriter output) {
+		output.println("Medium: " + stations.size() + " stations, " + transmissions + " transmissions, "
+				+ delivered + " deliveries, " + collisions + " lost to collisions, "
+				+ lost + " lost at random, " + corrupted + " corrupted");
+	}
+}
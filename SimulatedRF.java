@@ -0,0 +1,77 @@
+package wifi;
+
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * One station's view of a {@link SimulatedMedium}.  Get one from
+ * {@link SimulatedMedium#attach()} and hand it to
+ * {@link LinkLayer#LinkLayer(short, java.io.PrintWriter, RFInterface)}.
+ * 
+ * @author Braude and Corpron
+ *
+ */
+public class SimulatedRF implements RFInterface {
+
+	private SimulatedMedium medium;
+	private int id;
+	private LinkedBlockingQueue<byte[]> inbox = new LinkedBlockingQueue<>();
+	private volatile long clockOffset = 0;
+	
+	SimulatedRF(SimulatedMedium medium, int id) {
+		this.medium = medium;
+		this.id = id;
+	}
+	
+	/**
+	 * @return this station's position on the medium, counting from 0
+	 */
+	public int id() {
+		return id;
+	}
+	
+	/**
+	 * Sets how far this station's clock is from the real one, for testing
+	 * clock synchronization.
+	 * @param ms the offset, in ms
+	 */
+	public void setClockOffset(long ms) {
+		clockOffset = ms;
+	}
+	
+	//Called by the medium when a frame reaches us
+	void deliver(byte[] frame) {
+		inbox.offer(frame);
+	}
+
+	@Override
+	public int transmit(byte[] data) {
+		medium.transmit(this, data);
+		return data.length;
+	}
+
+	@Override
+	public byte[] receive() {
+		while (true) {
+			try {
+				return inbox.take();
+			} catch (InterruptedException e) {
+				//Keep waiting, as the real RF layer does
+			}
+		}
+	}
+
+	@Override
+	public boolean dataWaiting() {
+		return !inbox.isEmpty();
+	}
+
+	@Override
+	public boolean inUse() {
+		return medium.inUse(this);
+	}
+
+	@Override
+	public long clock() {
+		return System.currentTimeMillis() + clockOffset;
+	}
+}
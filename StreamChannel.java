@@ -0,0 +1,226 @@
+package wifi;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.TreeMap;
+
+/**
+ * A reliable, ordered byte stream to a neighboring station, made with
+ * {@link StreamEndpoint#connect(short, long)} or {@link StreamEndpoint#accept()}.
+ * Reads and writes block, as with a blocking socket channel.
+ * <p>
+ * Writes are cut into segments of up to {@link StreamEndpoint#MAX_SEGMENT}
+ * bytes, one per frame.  The link layer already retries each frame until
+ * it's acknowledged, so a segment counts as delivered as soon as its frame
+ * is, and there are no end-to-end acknowledgements.  Only segments the link
+ * layer gives up on are sent again.  The reader holds up to
+ * {@link StreamEndpoint#WINDOW} segments, and tells the writer as it makes
+ * room.
+ * <p>
+ * All state is guarded by the endpoint's lock.
+ *
+ * @author Braude and Corpron
+ *
+ */
+public class StreamChannel implements ByteChannel {
+
+	/**
+	 * A segment waiting to go out, or sent and waiting to hear how it went.
+	 */
+	static class Segment {
+		byte[] bytes;
+		int kind;
+		int failures = 0;
+
+		Segment(byte[] bytes, int kind) {
+			this.bytes = bytes;
+			this.kind = kind;
+		}
+	}
+
+	private final StreamEndpoint endpoint;
+	final short peer;
+	final int id;
+	final boolean initiator;
+
+	//Sending
+	final ArrayDeque<Segment> unsent = new ArrayDeque<>();
+	final ArrayDeque<Segment> resend = new ArrayDeque<>();
+	final ArrayList<Segment> inFlight = new ArrayList<>();
+	int nextSeq = 0;
+	//Data segments numbered below this fit in the reader's buffer
+	int peerLimit = StreamEndpoint.WINDOW;
+	int unsentData = 0;
+
+	//Receiving
+	final TreeMap<Integer, byte[]> early = new TreeMap<>();
+	final ArrayDeque<ByteBuffer> readable = new ArrayDeque<>();
+	int nextExpected = 0;
+	int consumed = 0;
+	int advertised = StreamEndpoint.WINDOW;
+	int finSeq = -1;
+
+	boolean connected = false;
+	boolean closed = false;
+	boolean finDelivered = false;
+	IOException broken = null;
+
+	StreamChannel(StreamEndpoint endpoint, short peer, int id, boolean initiator) {
+		this.endpoint = endpoint;
+		this.peer = peer;
+		this.id = id;
+		this.initiator = initiator;
+	}
+
+	/**
+	 * @return the station at the other end
+	 */
+	public short getRemoteAddress() {
+		return peer;
+	}
+
+	/**
+	 * Writes all of the buffer, blocking while the send buffer is full.
+	 * @return the number of bytes written
+	 * @throws ClosedChannelException if the channel has been closed
+	 * @throws IOException if the link to the peer has failed
+	 */
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		int written = 0;
+		synchronized (endpoint) {
+			while (src.hasRemaining()) {
+				check();
+				if (unsentData >= StreamEndpoint.WINDOW) {
+					endpoint.await();
+					continue;
+				}
+				int n = Math.min(src.remaining(), StreamEndpoint.MAX_SEGMENT);
+				byte[] payload = new byte[n];
+				src.get(payload);
+				queue(StreamEndpoint.DATA, nextSeq++, payload);
+				unsentData++;
+				written += n;
+			}
+		}
+		return written;
+	}
+
+	/**
+	 * Reads whatever has arrived, blocking until something has.
+	 * @return the number of bytes read, or -1 once the peer has closed and everything it sent has been read
+	 * @throws ClosedChannelException if the channel has been closed
+	 * @throws IOException if the link to the peer has failed
+	 */
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		synchronized (endpoint) {
+			while (readable.isEmpty()) {
+				if (closed) throw new ClosedChannelException();
+				if (finSeq >= 0 && consumed >= finSeq) return -1;
+				if (broken != null) throw broken;
+				endpoint.await();
+			}
+			int read = 0;
+			while (dst.hasRemaining() && !readable.isEmpty()) {
+				ByteBuffer head = readable.peek();
+				int n = Math.min(dst.remaining(), head.remaining());
+				ByteBuffer slice = head.duplicate();
+				slice.limit(slice.position() + n);
+				dst.put(slice);
+				head.position(head.position() + n);
+				read += n;
+				if (!head.hasRemaining()) {
+					readable.poll();
+					consumed++;
+				}
+			}
+			//Tell the writer about the room once half the window has been read
+			if (consumed + StreamEndpoint.WINDOW - advertised >= StreamEndpoint.WINDOW / 2) {
+				advertised = consumed + StreamEndpoint.WINDOW;
+				queue(StreamEndpoint.WIN, advertised, null);
+			}
+			return read;
+		}
+	}
+
+	/**
+	 * @return true until close() is called
+	 */
+	@Override
+	public boolean isOpen() {
+		synchronized (endpoint) {
+			return !closed;
+		}
+	}
+
+	/**
+	 * Closes the channel.  Data already written is still delivered, followed
+	 * by end of stream.
+	 */
+	@Override
+	public void close() {
+		synchronized (endpoint) {
+			if (closed) return;
+			closed = true;
+			readable.clear();
+			early.clear();
+			if (broken == null) {
+				queue(StreamEndpoint.FIN, nextSeq, null);
+			}
+			endpoint.release(this);
+		}
+	}
+
+	private void check() throws IOException {
+		if (closed) throw new ClosedChannelException();
+		if (broken != null) throw broken;
+	}
+
+	//Queues a segment for the endpoint to send
+	void queue(int kind, int seq, byte[] payload) {
+		unsent.add(new Segment(endpoint.segment(this, kind, seq, payload), kind));
+		endpoint.wake();
+	}
+
+	/**
+	 * @return the next segment that can go out now, or null
+	 */
+	Segment nextToSend() {
+		if (!resend.isEmpty()) return resend.poll();
+		Segment next = unsent.peek();
+		if (next == null) return null;
+		if (next.kind == StreamEndpoint.DATA && StreamEndpoint.seqOf(next.bytes) >= peerLimit) return null;
+		unsent.poll();
+		if (next.kind == StreamEndpoint.DATA) unsentData--;
+		return next;
+	}
+
+	/**
+	 * Takes an in-order or early data segment from the peer.
+	 * @return false if it's beyond what we have room for
+	 */
+	boolean accept(int seq, byte[] segment) {
+		//Nobody will read it, but take it so the writer can finish
+		if (closed) return true;
+		if (seq < nextExpected || early.containsKey(seq)) return true;
+		if (seq >= consumed + StreamEndpoint.WINDOW) return false;
+		early.put(seq, segment);
+		while (early.containsKey(nextExpected)) {
+			byte[] next = early.remove(nextExpected);
+			ByteBuffer payload = ByteBuffer.wrap(next, StreamEndpoint.HEADER, next.length - StreamEndpoint.HEADER);
+			nextExpected++;
+			readable.add(payload);
+		}
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return "StreamChannel to " + peer + " (" + (initiator ? "connected" : "accepted") + ", id " + id + ")";
+	}
+}
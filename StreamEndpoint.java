@@ -0,0 +1,319 @@
+package wifi;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintWriter;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Reliable, ordered byte streams between neighboring stations, on top of a
+ * {@link LinkLayer}.  Create one endpoint per link layer, then either
+ * connect() to a station or accept() a connection from one.  Each side gets a
+ * {@link StreamChannel}.
+ * <p>
+ * Streams travel in their own frame type (FT_STREAM), so they don't mix with
+ * data handed to recv() or listeners.  Every stream frame carries a segment:
+ * a kind byte, the connection id, a sequence number and any data.  The link
+ * layer tells us whether each frame was acknowledged, and a thread here sends
+ * queued segments whenever the link layer's send queue has room, resending
+ * first any it gave up on.  A segment the link layer gives up on
+ * {@link #MAX_FAILURES} times breaks the connection.
+ * <p>
+ * Streams are single hop: they don't go through the mesh.
+ *
+ * @author Braude and Corpron
+ *
+ */
+public class StreamEndpoint implements StreamHandler, Runnable {
+
+	//Segment kinds.  The high bit is set on segments from the connecting side.
+	static final int SYN = 1;
+	static final int SYN_ACK = 2;
+	static final int DATA = 3;
+	static final int WIN = 4;
+	static final int FIN = 5;
+	static final int RST = 6;
+	static final int FROM_INITIATOR = 0x80;
+
+	//Kind, connection id and sequence number
+	static final int HEADER = 7;
+	/** Most bytes of data carried in one segment */
+	public static final int MAX_SEGMENT = Packet.MAX_DATA - HEADER;
+	/** Segments a reader buffers, and a writer queues, before blocking */
+	public static final int WINDOW = 8;
+	/** Times the link layer may give up on a segment before the connection fails */
+	public static final int MAX_FAILURES = 3;
+	//Connections waiting for accept()
+	private static final int BACKLOG = 8;
+	//How long to wait for the send queue to drain when it's full
+	private static final long RETRY_MS = 20;
+
+	private LinkLayer link;
+	private HashMap<Long, StreamChannel> channels = new HashMap<>();
+	private ArrayDeque<StreamChannel> backlog = new ArrayDeque<>();
+	private int nextId = new Random().nextInt(1 << 16);
+	private boolean work = false;
+
+	private long segmentsSent = 0;
+	private long segmentsResent = 0;
+	private long segmentsRefused = 0;
+	private long connections = 0;
+	private long failures = 0;
+
+	/**
+	 * Starts handling streams for a link layer.
+	 * @param link the link layer; it should only ever have one endpoint
+	 */
+	public StreamEndpoint(LinkLayer link) {
+		this.link = link;
+		link.setStreamHandler(this);
+		Thread pump = new Thread(this, "StreamEndpoint");
+		pump.setDaemon(true);
+		pump.start();
+	}
+
+	/**
+	 * Opens a stream to a neighbor, waiting until it accepts.
+	 * @param dest the station to connect to
+	 * @param timeout how long to wait, in ms
+	 * @return the open channel
+	 * @throws SocketTimeoutException if the peer didn't accept in time
+	 * @throws IOException if the peer couldn't be reached or refused
+	 */
+	public StreamChannel connect(short dest, long timeout) throws IOException {
+		if (Packet.isGroup(dest)) throw new IllegalArgumentException("Streams need a single destination, not " + dest);
+		synchronized (this) {
+			int id;
+			do {
+				id = nextId++ & 0xFFFF;
+			} while (channels.containsKey(key(dest, id, true)));
+			StreamChannel c = new StreamChannel(this, dest, id, true);
+			channels.put(key(dest, id, true), c);
+			c.queue(SYN, 0, null);
+			long deadline = System.currentTimeMillis() + timeout;
+			long left;
+			while (!c.connected && c.broken == null && (left = deadline - System.currentTimeMillis()) > 0) {
+				try {
+					wait(left);
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+			if (c.connected) {
+				connections++;
+				return c;
+			}
+			channels.remove(key(dest, id, true));
+			if (c.broken != null) throw c.broken;
+			throw new SocketTimeoutException("No answer from " + dest);
+		}
+	}
+
+	/**
+	 * Waits for a neighbor to connect.
+	 * @return the open channel
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public synchronized StreamChannel accept() throws InterruptedException {
+		while (backlog.isEmpty()) {
+			wait();
+		}
+		StreamChannel c = backlog.poll();
+		c.connected = true;
+		c.queue(SYN_ACK, 0, null);
+		connections++;
+		return c;
+	}
+
+	@Override
+	public synchronized boolean segmentArrived(short src, byte[] segment) {
+		if (segment.length < HEADER) return true;
+		int kind = segment[0] & 0x7F;
+		//Whoever sent it, we're the other side
+		boolean initiator = (segment[0] & FROM_INITIATOR) == 0;
+		int id = idOf(segment);
+		int seq = seqOf(segment);
+		long key = key(src, id, initiator);
+		StreamChannel c = channels.get(key);
+
+		if (kind == SYN) {
+			if (c != null) return true;
+			c = new StreamChannel(this, src, id, false);
+			if (backlog.size() >= BACKLOG) {
+				c.queue(RST, 0, null);
+				c.closed = true;
+			} else {
+				backlog.add(c);
+			}
+			channels.put(key, c);
+			notifyAll();
+			return true;
+		}
+		if (c == null) return true;
+
+		boolean accepted = true;
+		switch (kind) {
+		case SYN_ACK:
+			c.connected = true;
+			break;
+		case DATA:
+			accepted = c.accept(seq, segment);
+			if (!accepted) segmentsRefused++;
+			break;
+		case WIN:
+			c.peerLimit = Math.max(c.peerLimit, seq);
+			break;
+		case FIN:
+			c.finSeq = seq;
+			break;
+		case RST:
+			c.broken = new IOException("Connection refused by " + src);
+			break;
+		}
+		tidy(c);
+		wake();
+		return accepted;
+	}
+
+	@Override
+	public synchronized void segmentSent(short dest, byte[] segment, boolean delivered) {
+		if (segment.length < HEADER) return;
+		boolean initiator = (segment[0] & FROM_INITIATOR) != 0;
+		StreamChannel c = channels.get(key(dest, idOf(segment), initiator));
+		if (c == null) return;
+		StreamChannel.Segment sent = null;
+		for (StreamChannel.Segment s : c.inFlight) {
+			if (Arrays.equals(s.bytes, segment)) {
+				sent = s;
+				break;
+			}
+		}
+		if (sent == null) return;
+		c.inFlight.remove(sent);
+		if (sent.kind == RST) {
+			//A refused connection is forgotten once the refusal has gone out
+			channels.remove(key(c.peer, c.id, c.initiator));
+		} else if (delivered) {
+			if (sent.kind == FIN) c.finDelivered = true;
+		} else if (++sent.failures >= MAX_FAILURES) {
+			failures++;
+			c.broken = new IOException("Lost contact with " + dest);
+		} else {
+			segmentsResent++;
+			c.resend.add(sent);
+		}
+		tidy(c);
+		wake();
+	}
+
+	/**
+	 * Sends queued segments whenever the link layer will take them.
+	 */
+	@Override
+	public void run() {
+		synchronized (this) {
+			while (true) {
+				boolean full = false;
+				for (StreamChannel c : channels.values()) {
+					if (c.broken != null) continue;
+					StreamChannel.Segment s;
+					while ((s = c.nextToSend()) != null) {
+						if (!link.sendStream(c.peer, s.bytes)) {
+							//Put it back where it was
+							if (s.failures > 0) {
+								c.resend.addFirst(s);
+							} else {
+								c.unsent.addFirst(s);
+								if (s.kind == DATA) c.unsentData++;
+							}
+							full = true;
+							break;
+						}
+						c.inFlight.add(s);
+						segmentsSent++;
+					}
+					if (full) break;
+				}
+				try {
+					if (full) {
+						wait(RETRY_MS);
+					} else {
+						while (!work) wait();
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+				work = false;
+			}
+		}
+	}
+
+	//Builds a segment for a channel
+	byte[] segment(StreamChannel c, int kind, int seq, byte[] payload) {
+		int n = payload == null ? 0 : payload.length;
+		byte[] out = new byte[HEADER + n];
+		out[0] = (byte)(kind | (c.initiator ? FROM_INITIATOR : 0));
+		out[1] = (byte)(c.id >> 8);
+		out[2] = (byte)c.id;
+		out[3] = (byte)(seq >> 24);
+		out[4] = (byte)(seq >> 16);
+		out[5] = (byte)(seq >> 8);
+		out[6] = (byte)seq;
+		if (n > 0) System.arraycopy(payload, 0, out, HEADER, n);
+		return out;
+	}
+
+	//Called with the lock held whenever there's something new for the pump or a waiting channel
+	void wake() {
+		work = true;
+		notifyAll();
+	}
+
+	//Waits on the endpoint's lock, for channels
+	void await() throws IOException {
+		try {
+			wait();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+	}
+
+	//Called when a channel is closed
+	void release(StreamChannel c) {
+		tidy(c);
+		notifyAll();
+	}
+
+	//Forgets a channel once both sides are finished with it
+	private void tidy(StreamChannel c) {
+		boolean done = c.broken != null || (c.finDelivered && c.finSeq >= 0);
+		if (c.closed && done && c.inFlight.isEmpty()) {
+			channels.remove(key(c.peer, c.id, c.initiator));
+		}
+	}
+
+	static int idOf(byte[] segment) {
+		return ((segment[1] & 0xFF) << 8) | (segment[2] & 0xFF);
+	}
+
+	static int seqOf(byte[] segment) {
+		return ((segment[3] & 0xFF) << 24) | ((segment[4] & 0xFF) << 16) | ((segment[5] & 0xFF) << 8) | (segment[6] & 0xFF);
+	}
+
+	private static long key(short peer, int id, boolean initiator) {
+		return ((long)(peer & 0xFFFF) << 17) | ((long)id << 1) | (initiator ? 1 : 0);
+	}
+
+	/**
+	 * Prints stream statistics to the given stream
+	 */
+	public synchronized void printStats(PrintWriter output) {
+		output.println("Streams: " + channels.size() + " open, " + connections + " connected in all, " + failures + " failed");
+		output.println("Segments sent: " + segmentsSent + ", resent after the link gave up: " + segmentsResent
+				+ ", refused for lack of room: " + segmentsRefused);
+	}
+}
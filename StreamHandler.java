@@ -0,0 +1,29 @@
+package wifi;
+
+/**
+ * What the link layer hands stream frames to.  {@link StreamEndpoint} is the
+ * only implementation; it registers itself when it's created.  Both methods
+ * are called on link layer threads, so they must be quick and never block.
+ *
+ * @author Braude and Corpron
+ *
+ */
+public interface StreamHandler {
+
+	/**
+	 * Called on the receiver thread when a stream frame arrives for us.
+	 * @param src the neighbor that sent it
+	 * @param segment the frame's data
+	 * @return true to acknowledge it, false to refuse it so the sender tries again later
+	 */
+	boolean segmentArrived(short src, byte[] segment);
+
+	/**
+	 * Called on the sender thread when a stream frame we sent is acknowledged
+	 * or given up on.
+	 * @param dest the frame's destination
+	 * @param segment the frame's data
+	 * @param delivered true if it was acknowledged
+	 */
+	void segmentSent(short dest, byte[] segment, boolean delivered);
+}
@@ -0,0 +1,72 @@
+package wifi;
+import java.io.PrintWriter;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * This thread hands the frames the receiver publishes to any registered
+ * {@link FrameTap}s.  Frames pass through a {@link FrameRing}, so publishing
+ * never blocks and frames are dropped (and counted) when the taps fall behind.
+ * 
+ * @author Braude and Corpron
+ *
+ */
+public class TapDispatcher implements Runnable {
+
+	private static final int ring_size = 256;
+	
+	private PrintWriter output;
+	private CopyOnWriteArrayList<FrameTap> taps = new CopyOnWriteArrayList<>();
+	//Taps aren't time-critical, so don't burn a core waiting for frames
+	private FrameRing ring = new FrameRing(ring_size, LinkLayer.WS_PARK);
+	
+	public TapDispatcher(PrintWriter output) {
+		this.output = output;
+	}
+	
+	public void add(FrameTap tap) {
+		taps.add(tap);
+	}
+	
+	public void remove(FrameTap tap) {
+		taps.remove(tap);
+	}
+	
+	/**
+	 * @return true if anyone is listening, so the receiver knows whether to publish
+	 */
+	public boolean active() {
+		return !taps.isEmpty();
+	}
+	
+	/**
+	 * Publish a raw frame to the taps.  Only the receiver thread may call this.
+	 * @param frame the frame as received from the RF layer
+	 * @param time the link layer's clock when it was received
+	 */
+	public void publish(byte[] frame, long time) {
+		ring.offer(frame, 0, time);
+	}
+	
+	@Override
+	public void run() {
+		long[] stamps = new long[2];
+		while (true) {
+			byte[] frame = ring.take(stamps);
+			Packet p = new Packet(frame);
+			for (FrameTap tap : taps) {
+				try {
+					tap.frameHeard(p, stamps[1]);
+				} catch (RuntimeException e) {
+					if (LinkLayer.debugLevel() > 0) output.println("TapDispatcher: tap threw " + e);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Prints tap statistics to the output stream
+	 */
+	public void printStats() {
+		output.println("Taps: " + taps.size() + ", frames dropped for slow taps: " + ring.dropped());
+	}
+}
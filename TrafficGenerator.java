@@ -0,0 +1,431 @@
+package wifi;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A headless stand-in for the GUI that sends traffic through the link layer on
+ * a schedule and reports how it went, for measuring the MAC without anyone
+ * clicking buttons.  Run it with <code>WiFiClient --headless</code> followed by
+ * the options listed in {@link #usage()}.
+ * <p>
+ * Profiles:
+ * <ul>
+ * <li><b>constant</b> sends a frame every 1/rate seconds</li>
+ * <li><b>poisson</b> sends frames at random with the given average rate</li>
+ * <li><b>bursty</b> sends bursts of back-to-back frames, at the given average rate</li>
+ * <li><b>reqresp</b> sends a frame and waits for the reply before sending the next</li>
+ * <li><b>echo</b> sends nothing, but returns every frame it receives to its sender</li>
+ * </ul>
+ * Frames go to each destination in turn.  Every interval it prints what was
+ * offered, rejected (send queue full), delivered and dropped, along with
+ * goodput, retries and latency percentiles, and it prints totals at the end.
+ * <p>
+ * With --record, everything the RF layer hands us is saved (see
+ * {@link RecordingRF}), and --replay runs the link layer over such a file
+ * instead of the air, to reproduce a run.  The recording keeps the seed for
+ * the link layer's backoff and the generator's own random numbers, and the
+ * replay uses it again unless --seed says otherwise.
+ *
+ * @author Braude and Corpron
+ *
+ */
+public class TrafficGenerator implements TxListener, LinkLayerListener {
+
+	public static final String[] PROFILES = {"constant", "poisson", "bursty", "reqresp", "echo"};
+	public static final int CONSTANT = 0;
+	public static final int POISSON = 1;
+	public static final int BURSTY = 2;
+	public static final int REQRESP = 3;
+	public static final int ECHO = 4;
+
+	//How long to wait for frames still in flight once the run is over, in ms
+	private static final long DRAIN_TIME = 2000;
+	//How long reqresp waits for a reply before giving up on it, in ms
+	private static final long REPLY_TIMEOUT = 1000;
+
+	private LinkLayer link;
+	private short[] dests;
+	private int profile;
+	private double rate;
+	private int size;
+	private int burst;
+	private long duration; //ms
+	private long interval; //ms
+	private PrintWriter out;
+	private Random rand = new Random();
+	private int nextDest = 0;
+	private byte[] payload;
+
+	private AtomicLong offered = new AtomicLong();
+	private AtomicLong rejected = new AtomicLong();
+	private AtomicLong delivered = new AtomicLong();
+	private AtomicLong failed = new AtomicLong();
+	private AtomicLong bytesDelivered = new AtomicLong();
+	private AtomicLong attempts = new AtomicLong();
+	private AtomicLong received = new AtomicLong();
+	private AtomicLong timeouts = new AtomicLong();
+	private LatencyHistogram latency = new LatencyHistogram();
+	private LatencyHistogram rtt = new LatencyHistogram();
+	private LinkedBlockingQueue<Transmission> replies = new LinkedBlockingQueue<>();
+
+	//Totals as of the last report, so each report covers one interval
+	private long lastOffered, lastRejected, lastDelivered, lastFailed, lastBytes, lastAttempts, lastReceived, lastTimeouts;
+	private LatencyHistogram totalLatency = new LatencyHistogram();
+	private LatencyHistogram totalRtt = new LatencyHistogram();
+	private long start;
+	private long lastReport;
+
+	/**
+	 * @param link the link layer to drive
+	 * @param dests where to send frames, in turn
+	 * @param profile one of the profile constants
+	 * @param rate average frames per second
+	 * @param size bytes of data per frame
+	 * @param burst frames per burst, for the bursty profile
+	 * @param duration how long to run, in ms
+	 * @param interval how often to report, in ms
+	 * @param out where to write reports
+	 * @param seed seed for the random choices of when to send
+	 */
+	public TrafficGenerator(LinkLayer link, short[] dests, int profile, double rate, int size, int burst, long duration, long interval, PrintWriter out, long seed) {
+		this.link = link;
+		this.dests = dests;
+		this.profile = profile;
+		this.rate = rate;
+		this.size = Math.min(size, Packet.MAX_DATA);
+		this.burst = Math.max(burst, 1);
+		this.duration = duration;
+		this.interval = interval;
+		this.out = out;
+		rand.setSeed(seed);
+		payload = new byte[this.size];
+		for (int i = 0; i < payload.length; i++) {
+			payload[i] = (byte)('a' + i%26);
+		}
+		link.addTxListener(this);
+		link.addListener(this);
+	}
+
+	@Override
+	public void txCompleted(short dest, int bytes, boolean delivered, int attempts, long latency) {
+		if (delivered) {
+			this.delivered.incrementAndGet();
+			bytesDelivered.addAndGet(bytes);
+			this.latency.record(latency);
+		} else {
+			failed.incrementAndGet();
+		}
+		this.attempts.addAndGet(attempts);
+	}
+
+	@Override
+	public void framesArrived(List<Transmission> frames) {
+		received.addAndGet(frames.size());
+		for (Transmission t : frames) {
+			if (profile == ECHO) {
+				if (t.getDestAddr() != -1) send(t.getSourceAddr(), t.getBuf());
+			} else if (profile == REQRESP) {
+				replies.offer(t);
+			}
+		}
+	}
+
+	@Override
+	public void outputWritten(String text) {
+		//Link layer output goes straight to its own stream
+	}
+
+	//Hands one frame to the link layer, and notes whether it was accepted
+	private boolean send(short dest, byte[] data) {
+		offered.incrementAndGet();
+		if (link.send(dest, data, data.length) == 0) {
+			rejected.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	private short nextDest() {
+		short dest = dests[nextDest];
+		nextDest = (nextDest + 1) % dests.length;
+		return dest;
+	}
+
+	/**
+	 * Runs the profile for the whole duration, reporting as it goes, then waits
+	 * briefly for frames still in flight and prints the totals.
+	 */
+	public void run() {
+		start = System.nanoTime();
+		lastReport = start;
+		long end = start + TimeUnit.MILLISECONDS.toNanos(duration);
+		long nextReport = start + TimeUnit.MILLISECONDS.toNanos(interval);
+		long period = (long)(1e9 / rate);
+		long next = start;
+
+		out.println("Running " + PROFILES[profile] + " traffic for " + duration/1000.0 + " s: "
+				+ (profile == ECHO ? "replying to whatever arrives" : size + "-byte frames at " + rate + "/s"));
+		while (System.nanoTime() < end) {
+			long now;
+			if (profile == REQRESP) {
+				requestResponse();
+				now = System.nanoTime();
+			} else if (profile == ECHO) {
+				//Replies are sent from framesArrived(); we just report
+				parkUntil(Math.min(nextReport, end));
+				now = System.nanoTime();
+			} else {
+				parkUntil(Math.min(Math.min(next, nextReport), end));
+				now = System.nanoTime();
+				if (now >= next && now < end) {
+					if (profile == BURSTY) {
+						for (int i = 0; i < burst; i++) send(nextDest(), payload);
+						next += period * burst;
+					} else {
+						send(nextDest(), payload);
+						if (profile == POISSON) {
+							next += (long)(-Math.log(1 - rand.nextDouble()) * period);
+						} else {
+							next += period;
+						}
+					}
+				}
+			}
+			if (now >= nextReport) {
+				report(false);
+				nextReport += TimeUnit.MILLISECONDS.toNanos(interval);
+			}
+		}
+
+		long drainEnd = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DRAIN_TIME);
+		while (delivered.get() + failed.get() < offered.get() - rejected.get() && System.nanoTime() < drainEnd) {
+			parkUntil(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(10));
+		}
+		report(false);
+		report(true);
+		out.flush();
+	}
+
+	//Sends one request and waits for the reply
+	private void requestResponse() {
+		short dest = nextDest();
+		long sent = System.nanoTime();
+		if (!send(dest, payload)) {
+			//Queue's full; give it a moment to drain
+			parkUntil(sent + TimeUnit.MILLISECONDS.toNanos(10));
+			return;
+		}
+		long deadline = sent + TimeUnit.MILLISECONDS.toNanos(REPLY_TIMEOUT);
+		try {
+			while (true) {
+				Transmission reply = replies.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+				if (reply == null) {
+					timeouts.incrementAndGet();
+					return;
+				}
+				if (reply.getSourceAddr() == dest) {
+					rtt.record(System.nanoTime() - sent);
+					return;
+				}
+			}
+		} catch (InterruptedException e) {
+			timeouts.incrementAndGet();
+		}
+	}
+
+	private static void parkUntil(long deadline) {
+		long wait;
+		while ((wait = deadline - System.nanoTime()) > 0) {
+			LockSupport.parkNanos(wait);
+		}
+	}
+
+	private static String ms(long nanos) {
+		return String.format("%.1f", nanos / 1e6);
+	}
+
+	/**
+	 * Prints one line covering the interval since the last report, or the totals
+	 * @param totals true to report the whole run instead of the last interval
+	 */
+	private void report(boolean totals) {
+		long now = System.nanoTime();
+		long o = offered.get(), r = rejected.get(), d = delivered.get(), f = failed.get();
+		long b = bytesDelivered.get(), a = attempts.get(), rx = received.get(), to = timeouts.get();
+		LatencyHistogram lat, trip;
+		double seconds;
+		if (totals) {
+			lat = totalLatency;
+			trip = totalRtt;
+			seconds = (now - start) / 1e9;
+			out.print("Total");
+		} else {
+			lat = latency.reset();
+			trip = rtt.reset();
+			totalLatency.add(lat);
+			totalRtt.add(trip);
+			seconds = (now - lastReport) / 1e9;
+			out.print(String.format("%5.1fs", (now - start) / 1e9));
+			long[] last = {lastOffered, lastRejected, lastDelivered, lastFailed, lastBytes, lastAttempts, lastReceived, lastTimeouts};
+			lastOffered = o; lastRejected = r; lastDelivered = d; lastFailed = f;
+			lastBytes = b; lastAttempts = a; lastReceived = rx; lastTimeouts = to;
+			o -= last[0]; r -= last[1]; d -= last[2]; f -= last[3];
+			b -= last[4]; a -= last[5]; rx -= last[6]; to -= last[7];
+			lastReport = now;
+		}
+		double loss = d + f == 0 ? 0 : 100.0 * f / (d + f);
+		double retries = d + f == 0 ? 0 : (double)a / (d + f) - 1;
+		out.print(String.format(" offered %d rejected %d delivered %d dropped %d received %d | goodput %.1f kbit/s loss %.1f%% retries/frame %.2f",
+				o, r, d, f, rx, b * 8 / 1000.0 / Math.max(seconds, 1e-9), loss, retries));
+		if (lat.count() > 0) {
+			out.print(" | latency ms p50 " + ms(lat.percentile(50)) + " p90 " + ms(lat.percentile(90))
+					+ " p99 " + ms(lat.percentile(99)) + " max " + ms(lat.max()));
+		}
+		if (profile == REQRESP) {
+			out.print(" | replies " + trip.count() + " timeouts " + to);
+			if (trip.count() > 0) {
+				out.print(" rtt ms p50 " + ms(trip.percentile(50)) + " p99 " + ms(trip.percentile(99)));
+			}
+		}
+		out.println();
+		out.flush();
+	}
+
+	/**
+	 * @return a description of the command-line options
+	 */
+	public static String usage() {
+		return "Usage: WiFiClient --headless [options]\n"
+				+ "  --mac N          our MAC address (default: random 701-800)\n"
+				+ "  --dest A,B,...   destinations, used in turn (required unless echoing)\n"
+				+ "  --profile P      constant, poisson, bursty, reqresp or echo (default constant)\n"
+				+ "  --rate R         average frames per second (default 10)\n"
+				+ "  --size N         bytes of data per frame (default 100)\n"
+				+ "  --burst N        frames per burst for bursty (default 8)\n"
+				+ "  --duration S     seconds to run (default 30)\n"
+				+ "  --interval S     seconds between reports (default 5)\n"
+				+ "  --debug N        link layer debug level (default 0)\n"
+				+ "  --log            show link layer output on stderr\n"
+				+ "  --seed N         seed for backoff and traffic (default: random,\n"
+				+ "                   or the recording's when replaying)\n"
+				+ "  --record FILE    record what the RF layer sees to FILE\n"
+				+ "  --replay FILE    run over a recording instead of the RF layer\n"
+				+ "                   (duration defaults to the recording's length)\n";
+	}
+
+	/**
+	 * Parses the command-line options, starts a link layer and runs the traffic.
+	 * @param args options as described by {@link #usage()}
+	 */
+	public static void main(String[] args) {
+		short mac = (short)(new Random().nextInt(100)+701);
+		short[] dests = null;
+		int profile = CONSTANT;
+		double rate = 10;
+		int size = 100;
+		int burst = 8;
+		double duration = 30;
+		double interval = 5;
+		int debug = 0;
+		boolean log = false;
+		String record = null;
+		String replay = null;
+		boolean durationSet = false;
+		Integer seed = null;
+
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String arg = args[i];
+				if (arg.equals("--log")) {
+					log = true;
+					continue;
+				}
+				if (i+1 >= args.length) throw new IllegalArgumentException(arg + " needs a value");
+				String val = args[++i];
+				switch (arg) {
+				case "--mac":      mac = Short.parseShort(val); break;
+				case "--rate":     rate = Double.parseDouble(val); break;
+				case "--size":     size = Integer.parseInt(val); break;
+				case "--burst":    burst = Integer.parseInt(val); break;
+				case "--duration": duration = Double.parseDouble(val); durationSet = true; break;
+				case "--interval": interval = Double.parseDouble(val); break;
+				case "--debug":    debug = Integer.parseInt(val); break;
+				case "--seed":     seed = Integer.parseInt(val); break;
+				case "--record":   record = val; break;
+				case "--replay":   replay = val; break;
+				case "--dest":
+					String[] parts = val.split(",");
+					dests = new short[parts.length];
+					for (int j = 0; j < parts.length; j++) dests[j] = Short.parseShort(parts[j].trim());
+					break;
+				case "--profile":
+					profile = -1;
+					for (int j = 0; j < PROFILES.length; j++) {
+						if (PROFILES[j].equals(val)) profile = j;
+					}
+					if (profile < 0) throw new IllegalArgumentException("unknown profile " + val);
+					break;
+				default:
+					throw new IllegalArgumentException("unknown option " + arg);
+				}
+			}
+			if (dests == null && profile != ECHO) throw new IllegalArgumentException("--dest is required");
+			if (record != null && replay != null) throw new IllegalArgumentException("--record and --replay can't be used together");
+			if (rate <= 0 || duration <= 0 || interval <= 0) throw new IllegalArgumentException("rate, duration and interval must be positive");
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.print(usage());
+			System.exit(1);
+		}
+		if (dests == null) dests = new short[] {-1};
+
+		PrintWriter linkOutput = log ? new PrintWriter(System.err, true) : new PrintWriter(new Writer() {
+			public void write(char[] buf, int off, int len) {}
+			public void flush() {}
+			public void close() {}
+		});
+		RFInterface theRF = null;
+		RecordingRF recorder = null;
+		ReplayRF player = null;
+		try {
+			if (replay != null) {
+				player = new ReplayRF(replay);
+				theRF = player;
+				if (seed == null) seed = player.seed();
+				if (!durationSet) duration = Math.max(player.length(), 1) / 1000.0;
+			} else if (record != null) {
+				if (seed == null) seed = new Random().nextInt();
+				recorder = new RecordingRF(LinkLayer.bradcoRF(), linkOutput, record, seed);
+				theRF = recorder;
+			}
+		} catch (Exception e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+		LinkLayer link = theRF == null ? new LinkLayer(mac, linkOutput) : new LinkLayer(mac, linkOutput, theRF);
+		link.command(1, debug);
+		if (seed == null) seed = new Random().nextInt();
+		link.command(12, seed);
+		PrintWriter out = new PrintWriter(System.out, true);
+		out.println("Using MAC address " + mac + ", seed " + seed);
+		if (player != null) out.println("Replaying " + replay + " (" + player.length() + " ms)");
+
+		TrafficGenerator gen = new TrafficGenerator(link, dests, profile, rate, size, burst,
+				(long)(duration * 1000), (long)(interval * 1000), out, seed);
+		gen.run();
+		if (recorder != null) {
+			recorder.close();
+			out.println("Recorded " + recorder.records() + " records to " + record);
+		}
+		if (player != null) player.printStats(out);
+		//The link layer's threads never finish on their own
+		System.exit(0);
+	}
+}
@@ -0,0 +1,22 @@
+package wifi;
+
+/**
+ * A listener that's told how each data frame we send turns out.  Register one
+ * with {@link LinkLayer#addTxListener(TxListener)}.  It's called on the sender
+ * thread as soon as a frame is acknowledged or given up on, so it must be quick.
+ * 
+ * @author Braude and Corpron
+ *
+ */
+public interface TxListener {
+
+	/**
+	 * Called once per data frame handed to {@code send()}.
+	 * @param dest the frame's destination
+	 * @param bytes how many bytes of data it carried
+	 * @param delivered true if it was acknowledged (broadcasts always are)
+	 * @param attempts how many times it was transmitted
+	 * @param latency nanoseconds from {@code send()} until it was acknowledged or dropped
+	 */
+	void txCompleted(short dest, int bytes, boolean delivered, int attempts, long latency);
+}
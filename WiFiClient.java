@@ -4,6 +4,7 @@ package wifi;
 import java.awt.BorderLayout;
 import java.awt.Color;
 import java.awt.Font;
+import java.awt.FontMetrics;
 import java.awt.GridLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
@@ -11,6 +12,10 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
 import java.util.Scanner;
 
@@ -18,11 +23,13 @@ import javax.swing.JButton;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
+import javax.swing.JList;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
 import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 
 
 
@@ -68,10 +75,19 @@ public class WiFiClient implements ActionListener, Runnable
 {
 	protected JScrollPane textPane;     // Holds the message text display
 	protected JTextArea inputBox;       // The message text display itself
-	// Text is collected in a StringBuilder as well as the JTextArea.  This allows us to
-	// continue buffering text in the StringBuilder even when the window is paused.
-	protected JTextArea display;        // The output text display
-	protected StringBuffer outputText = new StringBuffer(); // Holds display text
+	// Text is collected into whole lines by addText() and handed to the display in
+	// batches by a timer, so the display only ever holds the last MAX_LINES lines.
+	// While the window is paused, lines still go to the log file and are held
+	// (up to the same limit) until it resumes.
+	protected JList<String> display;    // The output text display
+	protected LogModel lines;           // The lines shown in the display
+	protected StringBuilder partialLine = new StringBuilder(); // Text since the last newline
+	protected ArrayDeque<String> pendingLines = new ArrayDeque<String>(); // Lines not yet displayed
+	protected ArrayDeque<String> heldLines = new ArrayDeque<String>(); // Lines that arrived while paused
+	protected int cellPadding;          // Space the renderer adds around a line's text
+	protected Timer refresher;          // Moves pending lines into the display
+	protected PrintWriter logFile;      // Where output is being saved, if anywhere
+	protected MetricsPanel metrics;     // Live charts of the link's counters
 	protected JFrame frame;             // The frame that holds the display and key panels
 	protected JButton[] ctrlButtons;    // Has to be field so listener can access them
 	protected JButton[] sendButtons;    // Has to be field so listener can access them
@@ -90,6 +106,9 @@ public class WiFiClient implements ActionListener, Runnable
 	protected static final int PAUSE = 2;
 	protected static final int SAVE = 3;
 
+	protected static int MAX_LINES = 10000;      // Scrollback kept in the display
+	protected static int REFRESH_MS = 40;        // Display updates at most 25 times a second
+
 
 
 	/**
@@ -154,13 +173,17 @@ public class WiFiClient implements ActionListener, Runnable
 		sendingPanel.add(sendButtonPanel);        // And, finally, the sending buttons
 		frame.add(sendingPanel, BorderLayout.NORTH);
 
-		// Text is displayed in a scrolling pane in the CENTER of the border layout
-		display = new JTextArea();
-		display.setEditable(false);
-		display.setLineWrap(true);
-		display.setWrapStyleWord(true);
+		// Text is displayed in a scrolling pane in the CENTER of the border layout.  A
+		// JList with a fixed cell size only renders the rows that are actually visible.
+		lines = new LogModel(MAX_LINES);
+		display = new JList<String>(lines);
 		display.setFont(new Font("Courier", Font.PLAIN, 14));
-		textPane = new JScrollPane(display); // Wrap TextArea in a ScrollPane
+		String prototype = String.format("%120s", "");
+		display.setPrototypeCellValue(prototype);
+		// The prototype fixes the row height and a starting width; refreshDisplay()
+		// widens the cells when a longer line arrives, so nothing is cut off.
+		cellPadding = display.getFixedCellWidth() - display.getFontMetrics(display.getFont()).stringWidth(prototype);
+		textPane = new JScrollPane(display); // Wrap the list in a ScrollPane
 
 		frame.add(textPane, BorderLayout.CENTER);
 
@@ -185,8 +208,21 @@ public class WiFiClient implements ActionListener, Runnable
 		frame.add(controls, BorderLayout.SOUTH);
 		frame.setVisible(true);
 
+		refresher = new Timer(REFRESH_MS, new ActionListener() {
+			public void actionPerformed(ActionEvent e) { refreshDisplay(); }
+		});
+		refresher.start();
+
 		// Now that frame's set up, go ahead and initialize link layer
 		theLinkLayer.initializeLinkLayer(MACaddr);
+
+		// A Java link layer can report its counters, so chart them in the EAST panel
+		if (theLinkLayer instanceof JavaGUIAdapter) {
+			metrics = new MetricsPanel((JavaGUIAdapter)theLinkLayer);
+			frame.add(metrics, BorderLayout.EAST);
+			frame.setSize(frame.getWidth() + metrics.getPreferredSize().width, frame.getHeight());
+			frame.validate();
+		}
 	}
 
 
@@ -259,9 +295,11 @@ public class WiFiClient implements ActionListener, Runnable
 		}
 		// Clear deletes the text from the buffer and resets the display
 		else if (e.getSource() == ctrlButtons[CLEAR]) { // CLEAR
-			outputText.delete(0, outputText.length());   
-			display.setText("");
-			textPane.getVerticalScrollBar().setValue(Integer.MAX_VALUE);
+			synchronized (this) {
+				pendingLines.clear();
+			}
+			heldLines.clear();
+			lines.clear();
 		}
 		// Pause negates the paused flag, which controls whether text added
 		// to the display is "posted" immediately.  It also changes the text
@@ -273,47 +311,95 @@ public class WiFiClient implements ActionListener, Runnable
 			}
 			else {
 				ctrlButtons[PAUSE].setText("Pause");
-				display.setText(outputText.toString());
-				textPane.getVerticalScrollBar().setValue(Integer.MAX_VALUE);
+				refreshDisplay();
 			}
 		}
 		else if (e.getSource() == ctrlButtons[SAVE])
 		{
-			saveToFile();
+			if (logFile == null) {
+				saveToFile();
+			}
+			else {
+				stopSaving();
+			}
 		}
 	}
 
 
 	/**
 	 * Call this to append text to the scrolling output pane.  No newlines are added,
-	 * so be sure to include a "\n" where desired.  Text is collected in a StringBuffer
-	 * (outputText) as well as the JTextArea (display).  This allows us to continue 
-	 * buffering text even when the window output is paused.
+	 * so be sure to include a "\n" where desired.  Text is split into lines here and
+	 * the complete lines are queued for the display, which picks them up in batches
+	 * on the event-dispatching thread.  Only the newest MAX_LINES lines are queued;
+	 * older ones are dropped if the display is falling behind.
 	 * 
 	 * @param msg  Text to add to the scrolling pane
 	 */
 	public synchronized void addText(String msg) {
+		int start = 0;
+		int newline;
+		while ((newline = msg.indexOf('\n', start)) >= 0) {
+			partialLine.append(msg, start, newline);
+			pendingLines.addLast(partialLine.toString());
+			partialLine.setLength(0);
+			if (pendingLines.size() > MAX_LINES) {
+				pendingLines.removeFirst();
+			}
+			start = newline + 1;
+		}
+		partialLine.append(msg, start, msg.length());
+	}
 
-		outputText.append(msg);   
-		// Setting the scroll bar's position sometimes causes a mysterious exception
-		// to be thrown.  If it happens, pause while the output collects in outputText.
-		// When the user resumes, all of the outputText will be dumped into the display
-		// pane again.
-		try {
-			if (!paused) { 
-				display.append(msg); 
-				// textPane.getVerticalScrollBar().setValue(Integer.MAX_VALUE);
+	/**
+	 * Takes all the complete lines queued by addText().
+	 */
+	private synchronized ArrayList<String> takePendingLines() {
+		ArrayList<String> batch = new ArrayList<String>(pendingLines);
+		pendingLines.clear();
+		return batch;
+	}
+
+	/**
+	 * Runs on the event-dispatching thread every REFRESH_MS.  Moves queued lines
+	 * into the log file (if we're saving) and into the display, then scrolls to the
+	 * bottom.  While paused, the lines are held back from the display instead.
+	 */
+	private void refreshDisplay() {
+		ArrayList<String> batch = takePendingLines();
+		if (logFile != null && !batch.isEmpty()) {
+			for (String line : batch) {
+				logFile.println(line);
+			}
+			logFile.flush();
+		}
+		if (paused) {
+			heldLines.addAll(batch);
+			while (heldLines.size() > MAX_LINES) {
+				heldLines.removeFirst();
 			}
-		} catch (RuntimeException e) {
-			System.err.println("Exception in addText() -- pausing output");
-			paused = true;
-			ctrlButtons[PAUSE].setText("Resume");
+			return;
 		}
+		if (!heldLines.isEmpty()) {
+			batch.addAll(0, heldLines);
+			heldLines.clear();
+		}
+		if (batch.isEmpty()) return;
+		// Widen the rows if any new line is longer than they are
+		FontMetrics metrics = display.getFontMetrics(display.getFont());
+		int width = display.getFixedCellWidth();
+		for (String line : batch) {
+			width = Math.max(width, metrics.stringWidth(line) + cellPadding);
+		}
+		if (width > display.getFixedCellWidth()) {
+			display.setFixedCellWidth(width);
+		}
+		lines.addAll(batch);
+		display.ensureIndexIsVisible(lines.getSize()-1);
 	}   
 
 	/**
-	 * Prompts user to select an output file, then writes all text from the
-	 * scrolling pane to the file.
+	 * Prompts user to select an output file, writes the scrollback to it, and then
+	 * keeps appending new output to it as it arrives until stopSaving() is called.
 	 */
 	private void saveToFile() {
 		File outputFile = null;
@@ -321,17 +407,35 @@ public class WiFiClient implements ActionListener, Runnable
 		int returnVal = chooser.showSaveDialog(null);
 		if(returnVal == JFileChooser.APPROVE_OPTION) {
 			outputFile = chooser.getSelectedFile();
-			PrintWriter writer;
 			try {
-				writer = new PrintWriter(new FileWriter(outputFile));
-				writer.println(display.getText());
-				writer.close();
+				logFile = new PrintWriter(new FileWriter(outputFile));
+				for (int i=0; i<lines.getSize(); i++) {
+					logFile.println(lines.getElementAt(i));
+				}
+				for (String line : heldLines) {  // Already taken while paused, so write them too
+					logFile.println(line);
+				}
+				logFile.flush();
+				ctrlButtons[SAVE].setText("Stop Saving");
 			} catch (IOException e) {
-				outputText.append("Error writing to file!!");
+				this.addText("Error writing to file!!\n");
 			}
 		} 
 	}
 
+	/**
+	 * Stops appending output to the file chosen in saveToFile().
+	 */
+	private void stopSaving() {
+		refreshDisplay();
+		logFile.close();
+		if (logFile.checkError()) {
+			this.addText("Error writing to file!!\n");
+		}
+		logFile = null;
+		ctrlButtons[SAVE].setText("Save");
+	}
+
 
 	/**
 	 * The run method should be executed by the event-dispatching thread.  it creates
@@ -339,7 +443,35 @@ public class WiFiClient implements ActionListener, Runnable
 	 */
 	public void run() { 
 		buildGUI();
-		(new Thread(new StreamWatcher(this))).start();
+		if (theLinkLayer instanceof JavaGUIAdapter) {
+			((JavaGUIAdapter)theLinkLayer).addListener(new DeliveryWatcher(this));
+		}
+		else {
+			(new Thread(new StreamWatcher(this))).start();
+		}
+	}
+
+
+	/**
+	 * Adds arriving data and link layer output to the display as soon as the
+	 * link layer hands them over.  Used when the adapter can push them to us,
+	 * so neither has to be polled for.
+	 */
+	class DeliveryWatcher implements LinkLayerListener {
+		WiFiClient display;
+
+		public DeliveryWatcher(WiFiClient display) { this.display = display; }
+
+		public void framesArrived(List<Transmission> frames) {
+			for (Transmission t : frames) {
+				String payload = new String(t.getBuf());
+				display.addText("From "+t.getSourceAddr()+": \""+payload+"\"\n");
+			}
+		}
+
+		public void outputWritten(String text) {
+			display.addText(text);
+		}
 	}
 
 
@@ -390,6 +522,13 @@ public class WiFiClient implements ActionListener, Runnable
 		Random rand = new Random();
 		short mac;
 
+		// Run without a GUI, generating traffic from the command line
+
+		if (args.length > 0 && args[0].equals("--headless")) {
+			TrafficGenerator.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+
 		// Take MAC on command-line if it's available, or create a random MAC
 
 		if (args.length > 0) {
@@ -420,6 +559,12 @@ public class WiFiClient implements ActionListener, Runnable
 
 		display.addText("Shift-click a button to change its MAC address.\n");
 
+		// If the link layer pushes its output to us, there's nothing left to do here
+
+		if (linkLayer instanceof JavaGUIAdapter) {
+			return;
+		}
+
 		// Run forever, watching for input from the link layer and adding it to the GUI's
 		// text display window.
 
@@ -0,0 +1,70 @@
+package wifi;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+
+/**
+ * Measures the link layer end to end: one station sends frames back to back
+ * to another over a {@link SimulatedMedium}, and the receiver calls recv().
+ * Reports frames per second, goodput, and the latency from send() to recv()
+ * for each payload size.  The medium runs in real time with the RF layer's
+ * slot times, so this measures the MAC's timing rather than CPU cost.
+ * 
+ * Run with the wifi classes on the classpath:
+ * <blockquote><pre>
+ * java wifi.LinkLayerBench [frames per size]
+ * </pre></blockquote>
+ * 
+ * @author Braude and Corpron
+ *
+ */
+public class LinkLayerBench {
+
+	static final int[] SIZES = {8, 64, 512, Packet.MAX_DATA};
+	
+	public static void main(String[] args) throws Exception {
+		int frames = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+		PrintWriter quiet = new PrintWriter(new Writer() {
+			public void write(char[] buf, int off, int len) {}
+			public void flush() {}
+			public void close() {}
+		});
+		SimulatedMedium medium = new SimulatedMedium(1);
+		LinkLayer sender = new LinkLayer((short)1, quiet, medium.attach());
+		LinkLayer receiver = new LinkLayer((short)2, quiet, medium.attach());
+		sender.command(1, 0);
+		
+		System.out.printf("%8s %10s %14s %10s %10s %10s%n", "bytes", "frames/s", "goodput kbit/s", "mean ms", "p50 ms", "p99 ms");
+		for (int size : SIZES) {
+			LatencyHistogram latency = new LatencyHistogram();
+			Thread source = new Thread(() -> {
+				for (int i = 0; i < frames; i++) {
+					byte[] data = new byte[size];
+					while (true) {
+						ByteBuffer.wrap(data).putLong(System.nanoTime());
+						if (sender.send((short)2, data, size) > 0) break;
+						try {
+							Thread.sleep(1);
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+				}
+			});
+			long start = System.nanoTime();
+			source.start();
+			Transmission t = new Transmission((short)0, (short)0, new byte[Packet.MAX_DATA]);
+			for (int i = 0; i < frames; i++) {
+				receiver.recv(t);
+				latency.record(System.nanoTime() - ByteBuffer.wrap(t.getBuf()).getLong());
+			}
+			double seconds = (System.nanoTime() - start) / 1e9;
+			source.join();
+			System.out.printf("%8d %10.2f %14.2f %10.1f %10.1f %10.1f%n", size, frames / seconds, frames * size * 8 / 1000.0 / seconds,
+					latency.mean() / 1e6, latency.percentile(50) / 1e6, latency.percentile(99) / 1e6);
+		}
+		medium.printStats(new PrintWriter(System.out, true));
+		System.exit(0);
+	}
+}
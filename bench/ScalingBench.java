@@ -0,0 +1,168 @@
+package wifi;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Measures how the MAC scales with the number of stations.  N stations share
+ * one {@link SimulatedMedium}, all in range of each other, and each keeps its
+ * send queue full of frames for the next station along.  After a warmup it
+ * measures for a fixed time and reports aggregate goodput, Jain's fairness
+ * index over the stations' goodput, how often receptions were lost to
+ * collisions, retries per frame, and send-to-ACK latency percentiles.
+ * <p>
+ * Results go to standard output as one JSON object per line, so they can be
+ * collected and compared across versions.  Each station count runs in its
+ * own JVM, since a link layer's threads never exit.
+ *
+ * Run with the wifi classes on the classpath:
+ * <blockquote><pre>
+ * java wifi.ScalingBench [station counts, comma separated] [seconds] [payload bytes]
+ * </pre></blockquote>
+ *
+ * @author Braude and Corpron
+ *
+ */
+public class ScalingBench {
+
+	static final String DEFAULT_COUNTS = "10,50,200";
+	static final double WARMUP = 5;
+
+	//Set while the measurement window is open
+	private static volatile boolean measuring;
+
+	public static void main(String[] args) throws Exception {
+		String counts = args.length > 0 ? args[0] : DEFAULT_COUNTS;
+		double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 30;
+		int size = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+
+		String[] list = counts.split(",");
+		if (list.length == 1) {
+			System.out.println(run(Integer.parseInt(list[0].trim()), seconds, size));
+			System.exit(0);
+		}
+		for (String n : list) {
+			System.out.println(fork(n.trim(), seconds, size));
+		}
+	}
+
+	//Runs one station count in a fresh JVM and returns its result line
+	private static String fork(String stations, double seconds, int size) throws Exception {
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		ProcessBuilder pb = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+				ScalingBench.class.getName(), stations, Double.toString(seconds), Integer.toString(size));
+		pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+		Process p = pb.start();
+		String result = null;
+		try (BufferedReader in = new BufferedReader(new InputStreamReader(p.getInputStream()))) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.startsWith("{")) result = line;
+			}
+		}
+		if (p.waitFor() != 0 || result == null) {
+			return "{\"stations\":" + stations + ",\"error\":\"run failed\"}";
+		}
+		return result;
+	}
+
+	/**
+	 * Runs N saturated stations and measures them.
+	 * @return the results as a line of JSON
+	 */
+	static String run(int n, double seconds, int size) throws Exception {
+		PrintWriter quiet = new PrintWriter(new Writer() {
+			public void write(char[] buf, int off, int len) {}
+			public void flush() {}
+			public void close() {}
+		});
+		SimulatedMedium medium = new SimulatedMedium(n);
+		LinkLayer[] stations = new LinkLayer[n];
+		AtomicLongArray bytes = new AtomicLongArray(n);
+		AtomicLongArray frames = new AtomicLongArray(n);
+		AtomicLongArray dropped = new AtomicLongArray(n);
+		AtomicLongArray attempts = new AtomicLongArray(n);
+		LatencyHistogram latency = new LatencyHistogram();
+
+		for (int i = 0; i < n; i++) {
+			final int station = i;
+			stations[i] = new LinkLayer((short)(i+1), quiet, medium.attach());
+			if (i == 0) stations[i].command(1, 0);
+			stations[i].addTxListener((dest, len, delivered, tries, nanos) -> {
+				if (!measuring) return;
+				attempts.addAndGet(station, tries);
+				if (delivered) {
+					frames.incrementAndGet(station);
+					bytes.addAndGet(station, len);
+					latency.record(nanos);
+				} else {
+					dropped.incrementAndGet(station);
+				}
+			});
+			//Keep receive queues empty so receivers never close their windows
+			stations[i].addListener(new LinkLayerListener() {
+				public void framesArrived(List<Transmission> f) {}
+				public void outputWritten(String text) {}
+			});
+		}
+
+		for (int i = 0; i < n; i++) {
+			LinkLayer from = stations[i];
+			short to = (short)((i+1) % n + 1);
+			byte[] data = new byte[size];
+			Thread t = new Thread(() -> {
+				while (true) {
+					if (from.send(to, data, data.length) == 0) {
+						try {
+							Thread.sleep(20);
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+				}
+			});
+			t.setDaemon(true);
+			t.start();
+		}
+
+		Thread.sleep((long)(WARMUP * 1000));
+		long[] before = medium.totals();
+		measuring = true;
+		long start = System.nanoTime();
+		Thread.sleep((long)(seconds * 1000));
+		measuring = false;
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		long[] after = medium.totals();
+
+		double sum = 0, sumSq = 0;
+		long totalFrames = 0, totalDropped = 0, totalAttempts = 0;
+		for (int i = 0; i < n; i++) {
+			double goodput = bytes.get(i) * 8 / 1000.0 / elapsed;
+			sum += goodput;
+			sumSq += goodput * goodput;
+			totalFrames += frames.get(i);
+			totalDropped += dropped.get(i);
+			totalAttempts += attempts.get(i);
+		}
+		double jain = sumSq == 0 ? 0 : sum * sum / (n * sumSq);
+		long transmissions = after[0] - before[0];
+		long receptions = (after[1] - before[1]) + (after[2] - before[2]) + (after[3] - before[3]);
+		double collisionRate = receptions == 0 ? 0 : (double)(after[2] - before[2]) / receptions;
+		long finished = totalFrames + totalDropped;
+
+		return String.format(Locale.ROOT, "{\"stations\":%d,\"seconds\":%.1f,\"payload\":%d,\"throughput_kbps\":%.2f,"
+				+ "\"frames\":%d,\"dropped\":%d,\"retries_per_frame\":%.3f,\"jain\":%.4f,"
+				+ "\"transmissions\":%d,\"collision_rate\":%.4f,"
+				+ "\"latency_ms\":{\"p50\":%.1f,\"p90\":%.1f,\"p99\":%.1f,\"max\":%.1f}}",
+				n, elapsed, size, sum, totalFrames, totalDropped,
+				finished == 0 ? 0 : (double)totalAttempts / finished - 1, jain,
+				transmissions, collisionRate,
+				latency.percentile(50) / 1e6, latency.percentile(90) / 1e6, latency.percentile(99) / 1e6, latency.max() / 1e6);
+	}
+}
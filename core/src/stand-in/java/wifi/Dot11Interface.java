@@ -0,0 +1,20 @@
+package wifi;
+
+/**
+ * Stand-in for the course-provided interface that {@link LinkLayer}
+ * implements, so the link layer builds without the course files.  It has the
+ * same methods; builds with the course profile use the real one instead.
+ * 
+ * @author Braude and Corpron
+ *
+ */
+public interface Dot11Interface {
+
+	int send(short dest, byte[] data, int len);
+
+	int recv(Transmission t);
+
+	int status();
+
+	int command(int cmd, int val);
+}
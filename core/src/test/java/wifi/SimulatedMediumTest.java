@@ -0,0 +1,134 @@
+package wifi;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the simulated medium loses frames the way the air would: to
+ * overlapping transmissions, to hidden nodes, and at random, and that the
+ * link layer's retries get data through the random losses.
+ * @author Braude and Corpron
+ */
+public class SimulatedMediumTest {
+
+	private static final int COLLISIONS = 2;
+	private static final int LOST = 3;
+	private static final int CORRUPTED = 4;
+
+	//Starts a long transmission on its own thread, and returns once the given station hears it
+	private static Thread transmitInBackground(SimulatedRF from, byte[] frame, SimulatedRF listener) throws InterruptedException {
+		Thread t = new Thread(() -> from.transmit(frame));
+		t.start();
+		while (!listener.inUse()) {
+			Thread.sleep(1);
+		}
+		return t;
+	}
+
+	//Waits long enough for anything on the air to have been delivered
+	private static void settle() throws InterruptedException {
+		Thread.sleep(50);
+	}
+
+	@Test
+	public void hiddenNodesCollideAtTheStationBetweenThem() throws InterruptedException {
+		SimulatedMedium m = new SimulatedMedium(1);
+		SimulatedRF a = m.attach();
+		SimulatedRF b = m.attach();
+		SimulatedRF c = m.attach();
+		m.setInRange(a, c, false);
+
+		Thread fromA = transmitInBackground(a, new byte[2000], b);
+		assertFalse(c.inUse(), "c shouldn't hear a");
+		c.transmit(new byte[100]);
+		fromA.join();
+		settle();
+
+		assertFalse(b.dataWaiting(), "b heard both, so it should have neither");
+		assertFalse(a.dataWaiting());
+		assertFalse(c.dataWaiting());
+		assertEquals(2, m.totals()[COLLISIONS]);
+
+		//On its own, a's frame gets through
+		byte[] frame = {1, 2, 3};
+		a.transmit(frame);
+		settle();
+		assertArrayEquals(frame, b.receive());
+		assertFalse(c.dataWaiting());
+	}
+
+	@Test
+	public void framesOverlappingInTimeCollide() throws InterruptedException {
+		SimulatedMedium m = new SimulatedMedium(2);
+		SimulatedRF a = m.attach();
+		SimulatedRF b = m.attach();
+		SimulatedRF c = m.attach();
+
+		Thread fromA = transmitInBackground(a, new byte[2000], b);
+		b.transmit(new byte[100]);
+		fromA.join();
+		settle();
+
+		//c hears both; a and b were each transmitting over the other's frame
+		assertFalse(a.dataWaiting());
+		assertFalse(b.dataWaiting());
+		assertFalse(c.dataWaiting());
+		assertEquals(4, m.totals()[COLLISIONS]);
+
+		byte[] frame = {4, 5, 6};
+		b.transmit(frame);
+		settle();
+		assertArrayEquals(frame, a.receive());
+		assertArrayEquals(frame, c.receive());
+	}
+
+	@Test
+	public void retriesRecoverLostAndCorruptedFrames() throws InterruptedException {
+		SimulatedMedium m = new SimulatedMedium(3);
+		m.setLossRate(0.1);
+		m.setCorruptionRate(0.1);
+		PrintWriter quiet = new PrintWriter(new StringWriter());
+		LinkLayer sender = new LinkLayer((short)1, quiet, m.attach());
+		LinkLayer receiver = new LinkLayer((short)2, quiet, m.attach());
+		BlockingQueue<Transmission> got = new LinkedBlockingQueue<>();
+		receiver.addListener(new LinkLayerListener() {
+			public void framesArrived(List<Transmission> frames) {
+				got.addAll(frames);
+			}
+
+			public void outputWritten(String text) {
+			}
+		});
+
+		int count = 12;
+		for (int i = 0; i < count; i++) {
+			byte[] data = ("frame " + i).getBytes();
+			while (sender.send((short)2, data, data.length) == 0) {
+				Thread.sleep(10);
+			}
+		}
+		for (int i = 0; i < count; i++) {
+			Transmission t = got.poll(30, TimeUnit.SECONDS);
+			assertNotNull(t, "frame " + i + " never arrived");
+			assertEquals("frame " + i, new String(t.getBuf()));
+		}
+		assertNull(got.poll(2, TimeUnit.SECONDS), "a retransmission was delivered twice");
+
+		long[] totals = m.totals();
+		assertTrue(totals[LOST] > 0, "nothing was lost, so retries weren't tested");
+		assertTrue(totals[CORRUPTED] > 0, "nothing was corrupted, so retries weren't tested");
+	}
+}
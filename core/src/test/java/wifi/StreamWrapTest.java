@@ -0,0 +1,101 @@
+package wifi;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Runs a stream past the point where its sequence numbers wrap, and checks
+ * every segment reaches the stream handler exactly once.
+ * @author Braude and Corpron
+ */
+public class StreamWrapTest {
+
+	private static final short US = 2;
+	private static final short PEER = 1;
+
+	//Hands the link layer whatever frames the test queues up; anything it sends just disappears
+	private static class ScriptedRF implements RFInterface {
+		final BlockingQueue<byte[]> air = new LinkedBlockingQueue<>();
+
+		public int transmit(byte[] data) {
+			return data.length;
+		}
+
+		public byte[] receive() {
+			try {
+				return air.take();
+			} catch (InterruptedException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		public boolean dataWaiting() {
+			return !air.isEmpty();
+		}
+
+		public boolean inUse() {
+			return false;
+		}
+
+		public long clock() {
+			return System.currentTimeMillis();
+		}
+	}
+
+	private static class Collector implements StreamHandler {
+		final BlockingQueue<byte[]> segments = new LinkedBlockingQueue<>();
+
+		public boolean segmentArrived(short src, byte[] segment) {
+			segments.add(segment);
+			return true;
+		}
+
+		public void segmentSent(short dest, byte[] segment, boolean delivered) {
+		}
+	}
+
+	private static byte[] segment(int n) {
+		return ByteBuffer.allocate(4).putInt(n).array();
+	}
+
+	private static byte[] frame(int n, boolean retry) {
+		return new Packet(PEER, US, segment(n), Packet.FT_STREAM, n & Packet.MAX_SEQ, retry).getPacket();
+	}
+
+	@Test
+	public void deliversEverySegmentOnceAcrossTheWrap() throws InterruptedException {
+		ScriptedRF rf = new ScriptedRF();
+		Collector collector = new Collector();
+		LinkLayer link = new LinkLayer(US, new PrintWriter(new StringWriter()), rf);
+		link.setStreamHandler(collector);
+
+		int count = 4200;
+		for (int n = 0; n < count; n++) {
+			rf.air.add(frame(n, false));
+			//Every so often the peer misses our ACK and sends it again, along with the one before.
+			//At 4096 that's seq 4095 arriving again after seq 0.
+			if (n > 0 && n % 512 == 0) {
+				rf.air.add(frame(n, true));
+				rf.air.add(frame(n-1, true));
+			}
+			byte[] got = collector.segments.poll(5, TimeUnit.SECONDS);
+			assertNotNull(got, "segment " + n + " never arrived");
+			assertArrayEquals(segment(n), got, "segment " + n + " out of order or repeated");
+		}
+
+		//The receiver takes frames in order, so once this arrives the retransmissions above have been handled
+		rf.air.add(frame(count, false));
+		assertArrayEquals(segment(count), collector.segments.poll(5, TimeUnit.SECONDS));
+		assertNull(collector.segments.poll(200, TimeUnit.MILLISECONDS), "a retransmission was delivered twice");
+	}
+}
@@ -0,0 +1,291 @@
+package wifi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Control;
+
+/**
+ * JMH benchmarks for {@link CircularByteBuffer} against the JDK's alternatives,
+ * PipedInputStream and java.nio.channels.Pipe, plus our own
+ * {@link DirectCircularByteBuffer}.  Each pipe gets a 64 KB buffer and is used
+ * through its streams, as the link layer's logging path does.  Measured:
+ * <ul>
+ * <li>handoff: a byte's round trip to a thread blocked reading it, and back</li>
+ * <li>oneByte: write(int) on one thread, read() on another</li>
+ * <li>bulk: 8 KB writes and reads</li>
+ * <li>fourWriters: four threads writing 100-byte lines, as the link layer's
+ *     threads do when they log, to one thread reading in bulk</li>
+ * <li>grow and preSized: filling an INFINITE_SIZE CircularByteBuffer, which
+ *     grows by doubling, against filling one allocated at full size up front</li>
+ * </ul>
+ * The throughput groups count write calls, so multiply the writer's score by
+ * the write size for bytes per second.  A blocked read or write can't see
+ * JMH end the iteration, so the first thread done measuring closes the pipe,
+ * which wakes the rest.
+ *
+ * @author Braude and Corpron
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class CircularByteBufferBenchmark {
+
+	static final int BUFFER = 64*1024;
+	static final int CHUNK = 8192;
+	static final int LINE = 100;
+
+	/**
+	 * One pipe, shared by the threads of a group and made fresh each iteration.
+	 */
+	@State(Scope.Group)
+	public static class Conduit {
+
+		@Param({"CircularByteBuffer", "DirectCircularByteBuffer", "PipedInputStream", "Pipe"})
+		String impl;
+
+		OutputStream out;
+		InputStream in;
+		//Set by the first thread to finish measuring, as it closes the pipe
+		volatile boolean closed;
+
+		@Setup(Level.Iteration)
+		public void open() throws IOException {
+			OutputStream[] ends = new OutputStream[1];
+			in = pipe(impl, ends);
+			out = ends[0];
+			closed = false;
+		}
+
+		@TearDown(Level.Iteration)
+		public synchronized void close() throws IOException {
+			if (closed) return;
+			closed = true;
+			//Readers still blocked see end of stream, writers an IOException
+			out.close();
+			in.close();
+		}
+
+		//Writes data (one byte if null), or closes the pipe once this thread's measurement is over
+		void write(Control control, byte[] data) throws IOException {
+			if (control.stopMeasurement) {
+				close();
+				return;
+			}
+			try {
+				if (data == null) {
+					out.write(1);
+				} else {
+					out.write(data);
+				}
+			} catch (IOException e) {
+				if (!closed) throw e;
+			}
+		}
+
+		//Reads into into (one byte if null), or closes the pipe once this thread's measurement is over
+		int read(Control control, byte[] into) throws IOException {
+			if (control.stopMeasurement) {
+				close();
+				return 0;
+			}
+			try {
+				return into == null ? in.read() : in.read(into);
+			} catch (IOException e) {
+				if (!closed) throw e;
+				return 0;
+			}
+		}
+	}
+
+	/**
+	 * Two pipes and a thread echoing whatever comes through one back down the other.
+	 */
+	@State(Scope.Thread)
+	public static class Echo {
+
+		@Param({"CircularByteBuffer", "DirectCircularByteBuffer", "PipedInputStream", "Pipe"})
+		String impl;
+
+		OutputStream ping;
+		InputStream pong;
+		Thread echo;
+
+		@Setup(Level.Trial)
+		public void open() throws IOException {
+			OutputStream[] ends = new OutputStream[1];
+			InputStream there = pipe(impl, ends);
+			ping = ends[0];
+			pong = pipe(impl, ends);
+			OutputStream back = ends[0];
+			echo = new Thread(() -> {
+				try {
+					int b;
+					while ((b = there.read()) != -1) {
+						back.write(b);
+						back.flush();
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			});
+			echo.start();
+		}
+
+		@TearDown(Level.Trial)
+		public void close() throws Exception {
+			//End of stream stops the echo thread
+			ping.close();
+			echo.join();
+		}
+	}
+
+	/**
+	 * Each thread's own buffers to write from and read into.
+	 */
+	@State(Scope.Thread)
+	public static class Chunks {
+		byte[] chunk = new byte[CHUNK];
+		byte[] line = new byte[LINE];
+		byte[] sink = new byte[CHUNK];
+	}
+
+	/**
+	 * How much to write into a buffer nobody is reading yet.
+	 */
+	@State(Scope.Thread)
+	public static class Fill {
+
+		@Param({"1", "16", "64"})
+		int megabytes;
+
+		byte[] line = new byte[LINE];
+	}
+
+	//Makes a pipe of the given kind, returning its input end and leaving its output end in ends[0]
+	static InputStream pipe(String impl, OutputStream[] ends) throws IOException {
+		switch (impl) {
+			case "CircularByteBuffer":
+				CircularByteBuffer cbb = new CircularByteBuffer(BUFFER);
+				ends[0] = cbb.getOutputStream();
+				return cbb.getInputStream();
+			case "DirectCircularByteBuffer":
+				DirectCircularByteBuffer dcbb = new DirectCircularByteBuffer(BUFFER);
+				ends[0] = dcbb.getOutputStream();
+				return dcbb.getInputStream();
+			case "PipedInputStream":
+				PipedInputStream piped = new PipedInputStream(BUFFER);
+				ends[0] = new PipedOutputStream(piped);
+				return piped;
+			case "Pipe":
+				Pipe pipe = Pipe.open();
+				ends[0] = Channels.newOutputStream(pipe.sink());
+				return Channels.newInputStream(pipe.source());
+			default:
+				throw new IllegalArgumentException("No such pipe: " + impl);
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public int handoff(Echo e) throws IOException {
+		e.ping.write(1);
+		e.ping.flush();
+		return e.pong.read();
+	}
+
+	@Benchmark
+	@Group("oneByte")
+	@GroupThreads(1)
+	public void oneByteWriter(Conduit c, Control control) throws IOException {
+		c.write(control, null);
+	}
+
+	@Benchmark
+	@Group("oneByte")
+	@GroupThreads(1)
+	public int oneByteReader(Conduit c, Control control) throws IOException {
+		return c.read(control, null);
+	}
+
+	@Benchmark
+	@Group("bulk")
+	@GroupThreads(1)
+	public void bulkWriter(Conduit c, Control control, Chunks chunks) throws IOException {
+		c.write(control, chunks.chunk);
+	}
+
+	@Benchmark
+	@Group("bulk")
+	@GroupThreads(1)
+	public int bulkReader(Conduit c, Control control, Chunks chunks) throws IOException {
+		return c.read(control, chunks.sink);
+	}
+
+	@Benchmark
+	@Group("fourWriters")
+	@GroupThreads(4)
+	public void lineWriter(Conduit c, Control control, Chunks chunks) throws IOException {
+		c.write(control, chunks.line);
+	}
+
+	@Benchmark
+	@Group("fourWriters")
+	@GroupThreads(1)
+	public int lineReader(Conduit c, Control control, Chunks chunks) throws IOException {
+		return c.read(control, chunks.sink);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 3)
+	@Measurement(iterations = 10)
+	public CircularByteBuffer grow(Fill f) throws IOException {
+		return fill(new CircularByteBuffer(CircularByteBuffer.INFINITE_SIZE), f);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 3)
+	@Measurement(iterations = 10)
+	public CircularByteBuffer preSized(Fill f) throws IOException {
+		return fill(new CircularByteBuffer(f.megabytes * 1024 * 1024 + 1), f);
+	}
+
+	//Writes 100-byte lines until the buffer holds the requested amount
+	private static CircularByteBuffer fill(CircularByteBuffer cbb, Fill f) throws IOException {
+		int total = f.megabytes * 1024 * 1024;
+		OutputStream out = cbb.getOutputStream();
+		for (int sent = 0; sent + LINE <= total; sent += LINE) {
+			out.write(f.line);
+		}
+		return cbb;
+	}
+}
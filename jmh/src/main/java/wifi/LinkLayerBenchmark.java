@@ -0,0 +1,120 @@
+package wifi;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks for the CPU cost of LinkLayer.send() and recv(), without the
+ * MAC's timing.  send() builds the frame and puts it on the send queue; recv()
+ * takes a frame off the receive queue and copies it out.  The link layer runs
+ * over an RF layer that never finishes a transmission, so once the sender
+ * thread has taken one frame it stays out of the way, and each benchmark
+ * empties (or refills) the queue it measures itself.
+ * <p>
+ * The link layer's threads never exit, so each fork ends with JMH's
+ * stray-thread warning and a short wait.
+ * 
+ * @author Braude and Corpron
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "-Djmh.shutdownTimeout=1")
+public class LinkLayerBenchmark {
+
+	@Param({"0", "64", "512", "2038"})
+	int size;
+	
+	short ourMAC = 101;
+	short dest = 202;
+	byte[] data;
+	Packet incoming;
+	Transmission t;
+	LinkLayer link;
+	ArrayBlockingQueue<Packet> outgoing;
+	LinkedBlockingDeque<Packet> received;
+	
+	@Setup
+	public void setUp() throws Exception {
+		PrintWriter quiet = new PrintWriter(new Writer() {
+			public void write(char[] buf, int off, int len) {}
+			public void flush() {}
+			public void close() {}
+		});
+		link = new LinkLayer(ourMAC, quiet, new StalledRF());
+		link.command(1, 0);
+		link.command(3, -1);
+		outgoing = link.outgoingQueue();
+		received = link.receivedQueue();
+		
+		//The sender takes this one and then waits forever in transmit()
+		link.send(dest, new byte[1], 1);
+		while (!outgoing.isEmpty()) Thread.sleep(1);
+		
+		data = new byte[size];
+		incoming = new Packet(dest, ourMAC, data, Packet.FT_DATA, 0, false);
+		t = new Transmission((short)0, (short)0, new byte[Packet.MAX_DATA]);
+	}
+	
+	@Benchmark
+	public Packet send() {
+		link.send(dest, data, size);
+		return outgoing.poll();
+	}
+	
+	@Benchmark
+	public int recv() {
+		received.offer(incoming);
+		return link.recv(t);
+	}
+	
+	/**
+	 * An idle medium where nothing ever arrives and transmit() never returns.
+	 */
+	static class StalledRF implements RFInterface {
+		
+		@Override
+		public int transmit(byte[] data) {
+			while (true) LockSupport.park();
+		}
+		
+		@Override
+		public byte[] receive() {
+			while (true) LockSupport.park();
+		}
+		
+		@Override
+		public boolean dataWaiting() {
+			return false;
+		}
+		
+		@Override
+		public boolean inUse() {
+			return false;
+		}
+		
+		@Override
+		public long clock() {
+			return System.currentTimeMillis();
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package wifi;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks for the frame codec: building frames, parsing received ones,
+ * checking the CRC, reading header fields, and making beacons.  Frame sizes
+ * run from an empty frame to the largest one 802.11~ allows.  Inputs are
+ * read from fields and results are returned, so JMH keeps the JIT from
+ * folding or dropping the work.
+ * 
+ * @author Braude and Corpron
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class PacketBenchmark {
+
+	@Param({"0", "64", "512", "2038"})
+	int size;
+	
+	short src = 101;
+	short dest = 201;
+	int seq = 1234;
+	long time = 1234567890123L;
+	byte[] data;
+	byte[] raw;
+	Packet packet;
+	Packet beacon;
+	
+	@Setup
+	public void setUp() {
+		data = new byte[size];
+		for (int i = 0; i < size; i++) data[i] = (byte)i;
+		packet = new Packet(src, dest, data, Packet.FT_DATA, seq, false);
+		raw = packet.getPacket().clone();
+		beacon = Packet.makeBeacon(src, time);
+	}
+	
+	@Benchmark
+	public Packet construct() {
+		return new Packet(src, dest, data, Packet.FT_DATA, seq, false);
+	}
+	
+	@Benchmark
+	public byte[] parse() {
+		return new Packet(raw).getData();
+	}
+	
+	@Benchmark
+	public boolean integrityCheck() {
+		return packet.integrityCheck();
+	}
+	
+	@Benchmark
+	public int getSeq() {
+		return packet.getSeq();
+	}
+	
+	@Benchmark
+	public short getSrc() {
+		return packet.getSrc();
+	}
+	
+	@Benchmark
+	public long getBeaconTime() {
+		return beacon.getBeaconTime();
+	}
+	
+	@Benchmark
+	public Packet makeBeacon() {
+		return Packet.makeBeacon(src, time);
+	}
+}